@@ -0,0 +1,61 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: The benchmarks' view of the library (see benchmarks.Bridge).
+ * Lives in the default package, next to the library, so that it can reach
+ * KMeans.Builder.phases().
+ ************************************************************************/
+
+import java.io.IOException;
+
+import benchmarks.Bridge;
+
+public class KMeansBridge implements Bridge {
+
+   public double[][] read(String file) throws IOException {
+      return CSVreader.read(file);
+   }
+
+   public void write(String file, double[][] points) throws IOException {
+      CSVwriter.write(file, points);
+   }
+
+   public Run prepare(double[][] points, int k, String seeding, boolean L1norm, long seed) {
+      final KMeans.Phases phases = new KMeans.Builder(k, points)
+                                             .seeding(KMeans.Seeding.valueOf(seeding))
+                                             .useL1norm(L1norm)
+                                             .seed(seed)
+                                             .phases();
+      return new Run() {
+         public void seed() {
+            phases.seed();
+         }
+
+         public void assign() {
+            phases.assign();
+         }
+
+         public void update() {
+            phases.update();
+         }
+
+         public double WCSS() {
+            return phases.WCSS();
+         }
+
+         public double iterate() {
+            return phases.iterate();
+         }
+      };
+   }
+
+   public double cluster(double[][] points, int k, String engine, boolean L1norm, long seed) {
+      return new KMeans.Builder(k, points)
+                       .iterations(1)
+                       .engine(KMeans.Engine.valueOf(engine))
+                       .useL1norm(L1norm)
+                       .seed(seed)
+                       .build()
+                       .getWCSS();
+   }
+}
@@ -0,0 +1,33 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Synthetic data for the benchmarks: m points in n dimensions,
+ * spread evenly over k spherical Gaussian blobs of standard deviation 1
+ * whose centers are uniform in [-10, 10]^n. The same arguments always give
+ * the same points.
+ ************************************************************************/
+
+package benchmarks;
+
+import java.util.Random;
+
+public class Blobs {
+
+   private static final double SPREAD = 10;
+
+   public static double[][] generate(int m, int n, int k, long seed) {
+      Random gen = new Random(seed);
+      double[][] centers = new double[k][n];
+      for (double[] center : centers)
+         for (int j = 0; j < n; j++)
+            center[j] = SPREAD * (2 * gen.nextDouble() - 1);
+
+      double[][] points = new double[m][n];
+      for (int i = 0; i < m; i++) {
+         double[] center = centers[i % k];
+         for (int j = 0; j < n; j++)
+            points[i][j] = center[j] + gen.nextGaussian();
+      }
+      return points;
+   }
+}
@@ -0,0 +1,60 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: What the benchmarks call in the KMeans library. The library is
+ * in the default package, which no named package can import, and JMH only
+ * benchmarks classes of named packages; so the benchmarks see the library
+ * through this interface, implemented by KMeansBridge (default package)
+ * and loaded by name once per trial.
+ *
+ * Enum values (seeding, engine) are passed by name, as JMH parameters are.
+ ************************************************************************/
+
+package benchmarks;
+
+import java.io.IOException;
+
+public interface Bridge {
+
+   /**
+    * CSVreader.read(file).
+    */
+   double[][] read(String file) throws IOException;
+
+   /**
+    * CSVwriter.write(file, points).
+    */
+   void write(String file, double[][] points) throws IOException;
+
+   /**
+    * A single run of KMeans on the points, not started yet.
+    */
+   Run prepare(double[][] points, int k, String seeding, boolean L1norm, long seed);
+
+   /**
+    * A whole KMeans run (one restart) with the given engine. Returns the WCSS.
+    */
+   double cluster(double[][] points, int k, String engine, boolean L1norm, long seed);
+
+   /**
+    * The steps of one run, a call at a time (see KMeans.Phases).
+    */
+   interface Run {
+      void seed();
+      void assign();
+      void update();
+      double WCSS();
+      double iterate();
+   }
+
+   /**
+    * The implementation, KMeansBridge.
+    */
+   static Bridge load() {
+      try {
+         return (Bridge) Class.forName("KMeansBridge").getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException e) {
+         throw new IllegalStateException("KMeansBridge missing from the benchmarks jar", e);
+      }
+   }
+}
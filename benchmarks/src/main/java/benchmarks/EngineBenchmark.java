@@ -0,0 +1,59 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Time of a whole KMeans run (KMeans++ seeding, then iterations
+ * until the stop test) with each Engine, on the same points and seed, so
+ * that every engine does the same iterations. L2 norm only, since KD_TREE
+ * and GEMM do not support L1; PhaseBenchmark covers both norms.
+ ************************************************************************/
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EngineBenchmark {
+
+   @Param({"10000", "100000"})
+   public int m;
+
+   @Param({"2", "32"})
+   public int n;
+
+   @Param({"8", "64"})
+   public int k;
+
+   @Param({"LLOYD", "HAMERLY", "ELKAN", "KD_TREE", "GEMM"})
+   public String engine;
+
+   private Bridge library;
+   private double[][] points;
+
+   @Setup
+   public void setup() {
+      library = Bridge.load();
+      points = Blobs.generate(m, n, k, 42);
+   }
+
+   @Benchmark
+   public double cluster() {
+      return library.cluster(points, k, engine, false, 42);
+   }
+}
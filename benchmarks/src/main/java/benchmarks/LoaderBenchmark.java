@@ -0,0 +1,70 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Time of CSVreader.read() and CSVwriter.write() on a csv file of
+ * m Gaussian-blob points in n dimensions (in the temp directory).
+ ************************************************************************/
+
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoaderBenchmark {
+
+   @Param({"10000", "100000"})
+   public int m;
+
+   @Param({"2", "32"})
+   public int n;
+
+   private Bridge library;
+   private double[][] points;
+   private File input;    // written once, read by read()
+   private File output;   // overwritten by every write()
+
+   @Setup
+   public void setup() throws IOException {
+      library = Bridge.load();
+      points = Blobs.generate(m, n, 8, 42);
+      input = File.createTempFile("points", ".csv");
+      output = File.createTempFile("written", ".csv");
+      library.write(input.getPath(), points);
+   }
+
+   @TearDown
+   public void tearDown() {
+      input.delete();
+      output.delete();
+   }
+
+   @Benchmark
+   public double[][] read() throws IOException {
+      return library.read(input.getPath());
+   }
+
+   @Benchmark
+   public void write() throws IOException {
+      library.write(output.getPath(), points);
+   }
+}
@@ -0,0 +1,74 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Time of a single step of a KMeans run: the assignment step, the
+ * update step, the WCSS, and the fused LLOYD iteration that does all three
+ * in one pass. Every trial seeds with KMeans++ and assigns once first, so
+ * the steps are timed on a realistic assignment.
+ ************************************************************************/
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhaseBenchmark {
+
+   @Param({"10000", "100000"})
+   public int m;
+
+   @Param({"2", "32"})
+   public int n;
+
+   @Param({"8", "64"})
+   public int k;
+
+   @Param({"false", "true"})
+   public boolean L1norm;
+
+   private Bridge.Run run;
+
+   @Setup
+   public void setup() {
+      run = Bridge.load().prepare(Blobs.generate(m, n, k, 42), k, "PLUSPLUS", L1norm, 42);
+      run.seed();
+      run.assign();
+   }
+
+   @Benchmark
+   public void assignment() {
+      run.assign();
+   }
+
+   @Benchmark
+   public void update() {
+      run.update();
+   }
+
+   @Benchmark
+   public double WCSS() {
+      return run.WCSS();
+   }
+
+   @Benchmark
+   public double iteration() {
+      return run.iterate();
+   }
+}
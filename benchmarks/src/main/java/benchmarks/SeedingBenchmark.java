@@ -0,0 +1,58 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Time to choose k initial centroids with each Seeding: RANDOM
+ * (basicRandSample()), PLUSPLUS (plusplus()), SCALABLE and MCMC.
+ ************************************************************************/
+
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeedingBenchmark {
+
+   @Param({"10000", "100000"})
+   public int m;
+
+   @Param({"2", "32"})
+   public int n;
+
+   @Param({"8", "64"})
+   public int k;
+
+   @Param({"RANDOM", "PLUSPLUS", "SCALABLE", "MCMC"})
+   public String seeding;
+
+   @Param({"false", "true"})
+   public boolean L1norm;
+
+   private Bridge.Run run;
+
+   @Setup
+   public void setup() {
+      run = Bridge.load().prepare(Blobs.generate(m, n, k, 42), k, seeding, L1norm, 42);
+   }
+
+   @Benchmark
+   public void seed() {
+      run.seed();
+   }
+}
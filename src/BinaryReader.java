@@ -0,0 +1,261 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ * 
+ * PURPOSE: Read binary point files (see BinaryWriter)
+ * 
+ * FORMAT: a 32-byte little-endian header followed by the values, row after
+ * row, as contiguous little-endian numbers.
+ * 
+ *    offset  size  field
+ *         0     4  magic   'K' 'M' 'B' 'P'
+ *         4     4  version 1
+ *         8     4  dtype   1 = float64, 2 = float32, 3 = int32
+ *        12     4  (reserved, 0)
+ *        16     8  rows
+ *        24     8  columns
+ *        32        rows * columns values
+ * 
+ * Since the values need no parsing, map() can hand them out straight from 
+ * the page cache, and reloading a data set costs about one page-in.
+ * 
+ * A single mapping holds at most 2 GB, so larger files are mapped as 
+ * consecutive segments of whole rows (see PointStore.map for clustering 
+ * them without loading them onto the heap).
+ ************************************************************************/
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class BinaryReader {
+
+   static final int MAGIC       = 0x504D424B;   // "KMBP" read as a little-endian int
+   static final int VERSION     = 1;
+   static final int HEADER_SIZE = 32;
+
+   static final int FLOAT64 = 1;
+   static final int FLOAT32 = 2;
+   static final int INT32   = 3;
+
+   // larger files are mapped in segments of at most this many bytes
+   static final long SEGMENT_SIZE = 1L << 30;
+
+   /**
+    * A binary point file mapped into memory. The values are not copied: they
+    * are read straight from the mapping, which stays valid until it is 
+    * garbage collected.
+    */
+   public static class Mapped {
+      private final int dtype;
+      private final int rows;
+      private final int columns;
+      private final MappedByteBuffer[] segments;   // little-endian, whole rows each
+      private final int rowsPerSegment;
+
+      private Mapped(int dtype, int rows, int columns, MappedByteBuffer[] segments, int rowsPerSegment) {
+         this.dtype = dtype;
+         this.rows = rows;
+         this.columns = columns;
+         this.segments = segments;
+         this.rowsPerSegment = rowsPerSegment;
+      }
+
+      public int rows() {
+         return rows;
+      }
+
+      public int columns() {
+         return columns;
+      }
+
+      /**
+       * FLOAT64, FLOAT32 or INT32.
+       */
+      int dtype() {
+         return dtype;
+      }
+
+      /**
+       * Number of segments the file is mapped in (1 unless it exceeds 
+       * SEGMENT_SIZE).
+       */
+      int segments() {
+         return segments.length;
+      }
+
+      /**
+       * Rows [s * rowsPerSegment(), (s + 1) * rowsPerSegment()) are in segment s.
+       */
+      int rowsPerSegment() {
+         return rowsPerSegment;
+      }
+
+      /**
+       * Segment s, little-endian, starting at its first value.
+       */
+      MappedByteBuffer segment(int s) {
+         return segments[s];
+      }
+
+      /**
+       * Row-major view of a float64 file: value (r, c) is at r * columns + c.
+       */
+      public DoubleBuffer doubles() {
+         check(FLOAT64);
+         return values().asDoubleBuffer();
+      }
+
+      /**
+       * Row-major view of a float32 file.
+       */
+      public FloatBuffer floats() {
+         check(FLOAT32);
+         return values().asFloatBuffer();
+      }
+
+      /**
+       * Row-major view of an int32 file.
+       */
+      public IntBuffer ints() {
+         check(INT32);
+         return values().asIntBuffer();
+      }
+
+      /**
+       * Copies the values into a double[][] (any numeric dtype).
+       */
+      public double[][] toArray() {
+         double[][] arr = new double[rows][columns];
+         if (dtype == FLOAT64) {
+            DoubleBuffer in = doubles();
+            for (int r = 0; r < rows; r++)
+               in.get(arr[r]);
+         }
+         else if (dtype == FLOAT32) {
+            FloatBuffer in = floats();
+            for (int r = 0; r < rows; r++)
+               for (int c = 0; c < columns; c++)
+                  arr[r][c] = in.get();
+         }
+         else {
+            IntBuffer in = ints();
+            for (int r = 0; r < rows; r++)
+               for (int c = 0; c < columns; c++)
+                  arr[r][c] = in.get();
+         }
+         return arr;
+      }
+
+      private void check(int expected) {
+         if (dtype != expected)
+            throw new IllegalStateException("File holds dtype " + dtype + ", not " + expected);
+      }
+
+      /**
+       * All values, as a single buffer.
+       */
+      private ByteBuffer values() {
+         if (segments.length > 1)
+            throw new IllegalStateException("File too large to view at once (2 GB); use PointStore.map");
+         return segments[0];
+      }
+   }
+
+   /**
+    * Maps a binary point file into memory without copying the values.
+    */
+   public static Mapped map(String inFile) throws IOException {
+      return map(inFile, SEGMENT_SIZE);
+   }
+
+   /**
+    * map(), with segments of at most 'segmentSize' bytes.
+    */
+   static Mapped map(String inFile, long segmentSize) throws IOException {
+      FileChannel channel = open(inFile);
+      try {
+         ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+         while (header.hasRemaining())
+            if (channel.read(header) < 0)
+               throw new IllegalArgumentException("Not a binary point file: " + inFile);
+         header.flip();
+
+         if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Not a binary point file: " + inFile);
+         int dtype = header.getInt(8);
+         long rows = header.getLong(16);
+         long columns = header.getLong(24);
+         int width = width(dtype);
+
+         if (rows < 0 || columns < 0 || channel.size() < HEADER_SIZE + rows * columns * width)
+            throw new IllegalArgumentException("File has invalid dimensions: " + inFile);
+         if (rows > Integer.MAX_VALUE || columns * width > segmentSize)
+            throw new IllegalArgumentException("File has too many rows or columns: " + inFile);
+
+         long rowSize = columns * width;
+         int rowsPerSegment = (int) Math.min(Math.max(rows, 1), segmentSize / Math.max(rowSize, 1));
+         int count = (int) Math.max(1, (rows + rowsPerSegment - 1) / rowsPerSegment);
+         MappedByteBuffer[] segments = new MappedByteBuffer[count];
+         for (int s = 0; s < count; s++) {
+            long first = (long) s * rowsPerSegment;
+            long size = Math.min(rowsPerSegment, rows - first) * rowSize;
+            segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * rowSize, size);
+            segments[s].order(ByteOrder.LITTLE_ENDIAN);
+         }
+         return new Mapped(dtype, (int) rows, (int) columns, segments, rowsPerSegment);
+      } finally {
+         channel.close();   // the mapping outlives the channel
+      }
+   }
+
+   /**
+    * Reads double[][] from a binary point file.
+    */
+   public static double[][] read(String inFile) throws IOException {
+      return map(inFile).toArray();
+   }
+
+   /**
+    * Reads an int[] (such as an assignment) from a single-column int32 file.
+    */
+   public static int[] readInts(String inFile) throws IOException {
+      Mapped mapped = map(inFile);
+      if (mapped.columns() != 1)
+         throw new IllegalArgumentException("File has invalid dimensions (columns)");
+      int[] arr = new int[mapped.rows()];
+      mapped.ints().get(arr);
+      return arr;
+   }
+
+   /**
+    * Converts a binary point file to a csv file.
+    */
+   public static void toCSV(String inFile, String csvFile) throws IOException {
+      CSVwriter.write(csvFile, read(inFile));
+   }
+
+   static int width(int dtype) {
+      if (dtype == FLOAT64)
+         return 8;
+      if (dtype == FLOAT32 || dtype == INT32)
+         return 4;
+      throw new IllegalArgumentException("Unknown dtype: " + dtype);
+   }
+
+   private static FileChannel open(String inFile) throws IOException {
+      try {
+         return FileChannel.open(Paths.get(inFile), StandardOpenOption.READ);
+      } catch (NoSuchFileException e) {
+         throw new FileNotFoundException(inFile);
+      }
+   }
+}
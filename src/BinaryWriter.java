@@ -0,0 +1,173 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ * 
+ * PURPOSE: Write binary point files, the counterpart of CSVwriter. For the
+ * format, see BinaryReader.
+ ************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class BinaryWriter {
+
+   private static final int BUFFER_SIZE = 1 << 20;
+
+   /**
+    * Writes double[][] (such as points or centroids) to a binary point file.
+    */
+   public static void write(String outFile, double[][] arr) throws IOException {
+      int rows = arr.length;
+      int columns = rows == 0 ? 0 : arr[0].length;
+
+      FileChannel out = create(outFile);
+      try {
+         ByteBuffer buf = header(BinaryReader.FLOAT64, rows, columns);
+         for (int r = 0; r < rows; r++) {
+            if (arr[r].length != columns)
+               throw new IllegalArgumentException("dimension error");
+            for (int c = 0; c < columns; c++) {
+               if (!buf.hasRemaining())
+                  flush(out, buf);
+               buf.putDouble(arr[r][c]);
+            }
+         }
+         flush(out, buf);
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Writes float[][] to a float32 binary point file (half the size of float64).
+    */
+   public static void write(String outFile, float[][] arr) throws IOException {
+      int rows = arr.length;
+      int columns = rows == 0 ? 0 : arr[0].length;
+
+      FileChannel out = create(outFile);
+      try {
+         ByteBuffer buf = header(BinaryReader.FLOAT32, rows, columns);
+         for (int r = 0; r < rows; r++) {
+            if (arr[r].length != columns)
+               throw new IllegalArgumentException("dimension error");
+            for (int c = 0; c < columns; c++) {
+               if (!buf.hasRemaining())
+                  flush(out, buf);
+               buf.putFloat(arr[r][c]);
+            }
+         }
+         flush(out, buf);
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Writes int[] (such as an assignment) to a single-column int32 file.
+    */
+   public static void write(String outFile, int[] arr) throws IOException {
+      FileChannel out = create(outFile);
+      try {
+         ByteBuffer buf = header(BinaryReader.INT32, arr.length, 1);
+         for (int i = 0; i < arr.length; i++) {
+            if (!buf.hasRemaining())
+               flush(out, buf);
+            buf.putInt(arr[i]);
+         }
+         flush(out, buf);
+      } finally {
+         out.close();
+      }
+   }
+
+   /**
+    * Single-column int32 file mapped for writing, in segments like
+    * BinaryReader.map(), so that an assignment of any length can be written
+    * without holding it on the heap.
+    */
+   static class MappedInts {
+      private final IntBuffer[] segments;
+      private final int rowsPerSegment;
+
+      private MappedInts(IntBuffer[] segments, int rowsPerSegment) {
+         this.segments = segments;
+         this.rowsPerSegment = rowsPerSegment;
+      }
+
+      void set(int i, int value) {
+         segments[i / rowsPerSegment].put(i % rowsPerSegment, value);
+      }
+
+      int get(int i) {
+         return segments[i / rowsPerSegment].get(i % rowsPerSegment);
+      }
+   }
+
+   /**
+    * Creates a single-column int32 file of 'rows' zeros and maps it for
+    * writing. The values reach the file when the OS writes the pages back.
+    */
+   static MappedInts mapInts(String outFile, int rows) throws IOException {
+      FileChannel out = FileChannel.open(Paths.get(outFile), StandardOpenOption.CREATE, 
+                                         StandardOpenOption.READ, StandardOpenOption.WRITE, 
+                                         StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+         ByteBuffer header = header(BinaryReader.INT32, rows, 1);
+         flush(out, header);
+
+         int rowsPerSegment = (int) Math.min(Math.max(rows, 1), BinaryReader.SEGMENT_SIZE / 4);
+         int count = (int) Math.max(1, (rows + (long) rowsPerSegment - 1) / rowsPerSegment);
+         IntBuffer[] segments = new IntBuffer[count];
+         for (int s = 0; s < count; s++) {
+            long first = (long) s * rowsPerSegment;
+            long size = 4 * Math.min(rowsPerSegment, rows - first);
+            MappedByteBuffer segment = out.map(FileChannel.MapMode.READ_WRITE, 
+                                               BinaryReader.HEADER_SIZE + 4 * first, size);
+            segments[s] = segment.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+         }
+         return new MappedInts(segments, rowsPerSegment);
+      } finally {
+         out.close();   // the mapping outlives the channel
+      }
+   }
+
+   /**
+    * Converts a csv file to a binary point file.
+    */
+   public static void fromCSV(String csvFile, String outFile) throws IOException {
+      write(outFile, CSVreader.read(csvFile));
+   }
+
+   /**
+    * Buffer holding the header, with room for the values after it. The 
+    * buffer size is a multiple of 8, so values never straddle a flush.
+    */
+   private static ByteBuffer header(int dtype, long rows, long columns) {
+      ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      buf.putInt(BinaryReader.MAGIC);
+      buf.putInt(BinaryReader.VERSION);
+      buf.putInt(dtype);
+      buf.putInt(0);
+      buf.putLong(rows);
+      buf.putLong(columns);
+      return buf;
+   }
+
+   private static void flush(FileChannel out, ByteBuffer buf) throws IOException {
+      buf.flip();
+      while (buf.hasRemaining())
+         out.write(buf);
+      buf.clear();
+   }
+
+   private static FileChannel create(String outFile) throws IOException {
+      return FileChannel.open(Paths.get(outFile), StandardOpenOption.CREATE,
+                              StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+   }
+}
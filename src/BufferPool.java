@@ -0,0 +1,101 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Large scratch arrays (one or k values per point) handed from one
+ * KMeans build to the next, so that many builds of similar size, as a
+ * KMeansScheduler runs them, do not each allocate and collect their own.
+ *
+ * Arrays are kept by exact length, up to a budget of bytes; beyond it, given
+ * arrays are left to the garbage collector. A taken array holds whatever the
+ * last user left in it. Thread-safe.
+ ************************************************************************/
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+class BufferPool {
+
+   private final long budget;   // bytes the pool may hold
+   private final AtomicLong held = new AtomicLong();
+   private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<double[]>> doubles =
+      new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<double[]>>();
+   private final ConcurrentHashMap<Integer, ConcurrentLinkedQueue<int[]>> ints =
+      new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<int[]>>();
+
+   BufferPool(long budget) {
+      this.budget = budget;
+   }
+
+   /**
+    * A double[length] from the pool, or a new one.
+    */
+   double[] doubles(int length) {
+      ConcurrentLinkedQueue<double[]> free = doubles.get(length);
+      double[] array = free == null ? null : free.poll();
+      if (array == null)
+         return new double[length];
+      held.addAndGet(-8L * length);
+      return array;
+   }
+
+   /**
+    * An int[length] from the pool, or a new one.
+    */
+   int[] ints(int length) {
+      ConcurrentLinkedQueue<int[]> free = ints.get(length);
+      int[] array = free == null ? null : free.poll();
+      if (array == null)
+         return new int[length];
+      held.addAndGet(-4L * length);
+      return array;
+   }
+
+   /**
+    * Gives an array back. The caller must not use it afterwards.
+    */
+   void give(double[] array) {
+      if (!reserve(8L * array.length))
+         return;
+      ConcurrentLinkedQueue<double[]> free = doubles.get(array.length);
+      if (free == null) {
+         doubles.putIfAbsent(array.length, new ConcurrentLinkedQueue<double[]>());
+         free = doubles.get(array.length);
+      }
+      free.offer(array);
+   }
+
+   /**
+    * Gives an array back. The caller must not use it afterwards.
+    */
+   void give(int[] array) {
+      if (!reserve(4L * array.length))
+         return;
+      ConcurrentLinkedQueue<int[]> free = ints.get(array.length);
+      if (free == null) {
+         ints.putIfAbsent(array.length, new ConcurrentLinkedQueue<int[]>());
+         free = ints.get(array.length);
+      }
+      free.offer(array);
+   }
+
+   /**
+    * Counts 'bytes' more as held, unless that would exceed the budget.
+    */
+   private boolean reserve(long bytes) {
+      while (true) {
+         long current = held.get();
+         if (current + bytes > budget)
+            return false;
+         if (held.compareAndSet(current, current + bytes))
+            return true;
+      }
+   }
+
+   /**
+    * Bytes held by the pool.
+    */
+   long held() {
+      return held.get();
+   }
+}
@@ -4,13 +4,34 @@
  * PURPOSE: Read CSV files
  ************************************************************************/
 
-import java.io.FileReader;
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class CSVreader {
 
+   private static final long MIN_CHUNK = 1 << 22;   // 4 MB: smaller chunks are not worth a task
+   private static final long MAX_CHUNK = 1 << 30;   // a single mapping must stay below 2 GB
+
+   // powers of ten that are exactly representable as doubles
+   private static final double[] POW10 = new double[23];
+   static {
+      POW10[0] = 1;
+      for (int i = 1; i < POW10.length; i++)
+         POW10[i] = POW10[i - 1] * 10;
+   }
+
    /**
     * Reads double[][] from csv file
     */
@@ -18,47 +39,303 @@ public class CSVreader {
       if (rows <= 0 || columns <= 0)
          throw new IllegalArgumentException("Invalid dimensions");
 
-      BufferedReader bf = null;
-      double[][] arr = new double[rows][columns];
+      double[][] arr;
+      try {
+         arr = read(inFile);
+      } catch (IOException e) {
+         throw new IllegalArgumentException("Could not read " + inFile, e);
+      }
+
+      if (arr.length > 0 && arr[0].length != columns)
+         throw new IllegalArgumentException("File has invalid dimensions (columns)");
+      if (arr.length != rows)
+         throw new IllegalArgumentException("File has invalid dimensions (rows)");
+
+      return arr;
+   }
+
+   /**
+    * Reads double[][] from csv file, inferring the # of rows and columns.
+    * Uses one thread per core.
+    */
+   public static double[][] read(String inFile) throws IOException {
+      return read(inFile, Runtime.getRuntime().availableProcessors());
+   }
 
-      String line = "";
-      int r = 0;
-      int c;
+   /**
+    * Reads double[][] from csv file, inferring the # of rows and columns.
+    *
+    * The file is memory-mapped and cut into chunks at line boundaries, which
+    * are parsed by up to 'parallelism' threads straight from the mapped bytes.
+    * Numbers are parsed without creating Strings, except for those with more
+    * than 18 significant digits or an exponent that is out of the exact range
+    * (those fall back to Double.parseDouble). Blank lines are skipped, and so
+    * are empty fields at the end of a line (e.g. a trailing comma); any other
+    * empty field is an IllegalArgumentException giving its row and column.
+    */
+   public static double[][] read(String inFile, int parallelism) throws IOException {
+      if (parallelism < 1)
+         throw new IllegalArgumentException("Required: positive parallelism");
 
+      FileChannel channel = FileChannel.open(Paths.get(inFile), StandardOpenOption.READ);
       try {
-         bf = new BufferedReader(new FileReader(inFile));
-         
-         while ((line = bf.readLine()) != null) {
-            String[] x = line.split(",");
-
-            if (x.length != columns)
-               throw new IllegalArgumentException("File has invalid dimensions (columns)");
-         
-            for (c = 0; c < columns; c++)
-               arr[r][c] = Double.parseDouble(x[c] + "\t");
-            
-            r++;
+         long size = channel.size();
+         int chunks = (int) Math.max(Math.min(parallelism * 4L, (size + MIN_CHUNK - 1) / MIN_CHUNK),
+                                     (size + MAX_CHUNK - 1) / MAX_CHUNK);
+         chunks = Math.max(chunks, 1);
+
+         // move every nominal boundary to the start of the next line
+         long[] bounds = new long[chunks + 1];
+         bounds[chunks] = size;
+         for (int c = 1; c < chunks; c++)
+            bounds[c] = Math.max(bounds[c - 1], nextLine(channel, size * c / chunks));
+
+         List<List<double[]>> parts = new ArrayList<List<double[]>>(chunks);
+         if (parallelism == 1 || chunks == 1) {
+            try {
+               for (int c = 0; c < chunks; c++)
+                  parts.add(parse(map(channel, bounds[c], bounds[c + 1])));
+            } catch (EmptyField e) {
+               throw e.in(parts);
+            }
          }
-         
-      } catch (FileNotFoundException e) {
-         e.printStackTrace();
-      } catch (IOException e) {
-         e.printStackTrace();
-      } finally {
-         if (bf != null) {
+         else {
+            List<Callable<List<double[]>>> tasks = new ArrayList<Callable<List<double[]>>>(chunks);
+            for (int c = 0; c < chunks; c++) {
+               final ByteBuffer chunk = map(channel, bounds[c], bounds[c + 1]);
+               tasks.add(new Callable<List<double[]>>() {
+                  public List<double[]> call() {
+                     return parse(chunk);
+                  }
+               });
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
             try {
-               bf.close();
-            } catch (IOException e) {
-               e.printStackTrace();
+               for (Future<List<double[]>> part : pool.invokeAll(tasks))
+                  parts.add(part.get());
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while reading " + inFile, e);
+            } catch (ExecutionException e) {
+               if (e.getCause() instanceof EmptyField)
+                  throw ((EmptyField) e.getCause()).in(parts);
+               if (e.getCause() instanceof RuntimeException)
+                  throw (RuntimeException) e.getCause();
+               throw new IOException(e.getCause());
+            } finally {
+               pool.shutdown();
             }
          }
+
+         // concatenate the chunks; every row must have the same # of columns
+         int rows = 0;
+         for (List<double[]> part : parts)
+            rows += part.size();
+         double[][] arr = new double[rows][];
+         int r = 0;
+         for (List<double[]> part : parts)
+            for (double[] row : part) {
+               if (r > 0 && row.length != arr[0].length)
+                  throw new IllegalArgumentException("File has invalid dimensions (columns)");
+               arr[r++] = row;
+            }
+         return arr;
+      } finally {
+         channel.close();
       }
+   }
 
-      if (r != rows)
-         throw new IllegalArgumentException("File has invalid dimensions (rows)");
+   /**
+    * Position of the first byte after the next '\n' at or after 'from'.
+    */
+   private static long nextLine(FileChannel channel, long from) throws IOException {
+      ByteBuffer window = ByteBuffer.allocate(1 << 12);
+      long position = from;
+      while (true) {
+         window.clear();
+         int read = channel.read(window, position);
+         if (read <= 0)
+            return channel.size();
+         for (int i = 0; i < read; i++)
+            if (window.get(i) == '\n')
+               return position + i + 1;
+         position += read;
+      }
+   }
 
-      return arr;
-   }   
+   private static MappedByteBuffer map(FileChannel channel, long from, long to) throws IOException {
+      return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+   }
+
+   /**
+    * Parses every line of a chunk. The chunk starts at the beginning of a line.
+    */
+   private static List<double[]> parse(ByteBuffer buf) {
+      List<double[]> rows = new ArrayList<double[]>();
+      double[] row = new double[16];   // grows to the widest line
+      int limit = buf.limit();
+      int pos = 0;
+
+      while (pos < limit) {
+         int columns = 0;
+         int empty = 0;   // empty fields since the last number
+         int start = pos;
+
+         // split the line at commas; empty fields at its end are dropped
+         while (true) {
+            byte b = pos < limit ? buf.get(pos) : (byte) '\n';
+            if (b == ',' || b == '\n') {
+               if (isBlank(buf, start, pos))
+                  empty++;
+               else {
+                  if (empty > 0)
+                     throw new EmptyField(rows.size(), columns);
+                  if (columns == row.length)
+                     row = Arrays.copyOf(row, 2 * columns);
+                  row[columns++] = parseDouble(buf, start, pos);
+               }
+               pos++;
+               start = pos;
+               if (b == '\n')
+                  break;
+            }
+            else
+               pos++;
+         }
+
+         if (columns > 0)
+            rows.add(Arrays.copyOf(row, columns));
+         else if (empty > 1)
+            throw new EmptyField(rows.size(), 0);   // commas but no numbers
+      }
+      return rows;
+   }
+
+   /**
+    * An empty field before a number, or a line of commas only. The row is
+    * counted from the start of the chunk; read() turns it into an
+    * IllegalArgumentException with the row in the file.
+    */
+   private static class EmptyField extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+
+      final int row;      // rows of its chunk before this one
+      final int column;   // numbers before the empty field
+
+      EmptyField(int row, int column) {
+         this.row = row;
+         this.column = column;
+      }
+
+      /**
+       * The error, where 'parts' holds the rows of the chunks before this one.
+       */
+      IllegalArgumentException in(List<List<double[]>> parts) {
+         int before = row;
+         for (List<double[]> part : parts)
+            before += part.size();
+         return new IllegalArgumentException("Empty field in row " + (before + 1) 
+                                             + ", column " + (column + 1));
+      }
+   }
+
+   private static boolean isBlank(ByteBuffer buf, int from, int to) {
+      for (int i = from; i < to; i++)
+         if (!isSpace(buf.get(i)))
+            return false;
+      return true;
+   }
+
+   private static boolean isSpace(byte b) {
+      return b == ' ' || b == '\t' || b == '\r';
+   }
+
+   /**
+    * Parses the (ASCII) number in buf[from, to), ignoring surrounding spaces.
+    * The fast path is exact: the mantissa fits in 53 bits and the power of ten
+    * is exact, so one multiplication or division rounds correctly.
+    */
+   static double parseDouble(ByteBuffer buf, int from, int to) {
+      while (from < to && isSpace(buf.get(from)))
+         from++;
+      while (to > from && isSpace(buf.get(to - 1)))
+         to--;
+
+      int i = from;
+      boolean negative = false;
+      if (i < to && (buf.get(i) == '-' || buf.get(i) == '+'))
+         negative = buf.get(i++) == '-';
+
+      long mantissa = 0;
+      int digits = 0;         // significant digits in the mantissa
+      int exponent = 0;       // power of ten applied to the mantissa
+      boolean any = false;    // seen at least one digit
+      boolean dot = false;
+
+      for (; i < to; i++) {
+         byte b = buf.get(i);
+         if (b >= '0' && b <= '9') {
+            any = true;
+            if (mantissa == 0 && b == '0') {   // leading zero
+               if (dot)
+                  exponent--;
+               continue;
+            }
+            if (++digits > 18)
+               return fallback(buf, from, to);
+            mantissa = 10 * mantissa + (b - '0');
+            if (dot)
+               exponent--;
+         }
+         else if (b == '.' && !dot)
+            dot = true;
+         else
+            break;
+      }
+
+      if (i < to && (buf.get(i) == 'e' || buf.get(i) == 'E') && any) {
+         i++;
+         boolean negativeExp = false;
+         if (i < to && (buf.get(i) == '-' || buf.get(i) == '+'))
+            negativeExp = buf.get(i++) == '-';
+         int exp = 0;
+         int start = i;
+         for (; i < to && buf.get(i) >= '0' && buf.get(i) <= '9'; i++) {
+            if (exp > 100000)
+               return fallback(buf, from, to);
+            exp = 10 * exp + (buf.get(i) - '0');
+         }
+         if (i == start)
+            return fallback(buf, from, to);
+         exponent += negativeExp ? -exp : exp;
+      }
+
+      if (!any || i != to)
+         return fallback(buf, from, to);   // NaN, Infinity, hex, or garbage
+
+      double value;
+      if (mantissa == 0)
+         value = 0;
+      else if (mantissa < (1L << 53) && exponent >= 0 && exponent < POW10.length)
+         value = mantissa * POW10[exponent];
+      else if (mantissa < (1L << 53) && exponent < 0 && -exponent < POW10.length)
+         value = mantissa / POW10[-exponent];
+      else
+         return fallback(buf, from, to);
+
+      return negative ? -value : value;
+   }
+
+   /**
+    * Slow path for numbers the fast path cannot parse exactly.
+    */
+   private static double fallback(ByteBuffer buf, int from, int to) {
+      byte[] bytes = new byte[to - from];
+      for (int i = from; i < to; i++)
+         bytes[i - from] = buf.get(i);
+      return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+   }
 
    public static void main(String[] args) {
       String testFile;
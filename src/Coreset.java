@@ -0,0 +1,181 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Small weighted summary of a large set of points, on which
+ * KMeans can run all of its restarts instead of on the full data.
+ *
+ * ALGORITHM: sensitivity sampling with respect to the mean ("lightweight
+ * coresets", Bachem, Lucic and Krause 2018). Two passes over the points:
+ * the first computes their (weighted) mean u, the second the cost
+ * d(x) = D(x, u) of every point. Points are then drawn with probability
+ *
+ *    q(x) = 1/2 w(x) / sum(w) + 1/2 w(x) d(x) / sum(w d)
+ *
+ * and a point drawn c times gets weight c w(x) / (size q(x)), so that the
+ * weighted cost of any set of centroids on the coreset is an unbiased
+ * estimate of its cost on the full data. Points far from the mean, which
+ * can be whole small clusters, are drawn more often than uniformly.
+ *
+ * ERROR: for a fixed set of centroids, the relative error of the estimate
+ * shrinks like 1 / sqrt(size). KMeans.getCoresetError() reports it for
+ * the final centroids, and main() prints it for a range of sizes.
+ ************************************************************************/
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class Coreset {
+
+   private final PointStore points;   // the sampled points (copies)
+   private final double[] weights;    // weight of every sampled point
+
+   private Coreset(PointStore points, double[] weights) {
+      this.points = points;
+      this.weights = weights;
+   }
+
+   /**
+    * Draws a coreset of 'size' points (fewer if some are drawn more than
+    * once). 'weights' may be null (every point weighs 1). With L1norm the
+    * cost of a point is its L1 distance to the mean, otherwise its squared
+    * L2 distance, as in KMeans.
+    */
+   public static Coreset sample(PointStore points, double[] weights, int size,
+                                boolean L1norm, Random gen) {
+      if (size < 1)
+         throw new IllegalArgumentException("Required: positive coreset size. Ex: 10000");
+      int m = points.size();
+      int n = points.dimension();
+
+      // pass 1: weighted mean
+      double[] mean = new double[n];
+      double totalWeight = 0;
+      for (int i = 0; i < m; i++) {
+         double w = weights == null ? 1 : weights[i];
+         points.addTo(i, w, mean);
+         totalWeight += w;
+      }
+      for (int j = 0; j < n; j++)
+         mean[j] /= totalWeight;
+
+      // pass 2: cost of every point, then the cumulative sampling distribution
+      double[] cumulative = new double[m];
+      double totalCost = 0;
+      for (int i = 0; i < m; i++) {
+         double w = weights == null ? 1 : weights[i];
+         cumulative[i] = w * (L1norm ? points.L1(i, mean) : points.L2(i, mean));
+         totalCost += cumulative[i];
+      }
+      double sum = 0;
+      for (int i = 0; i < m; i++) {
+         double w = weights == null ? 1 : weights[i];
+         double q = totalCost > 0 ? 0.5 * w / totalWeight + 0.5 * cumulative[i] / totalCost
+                                  : w / totalWeight;
+         sum += q;
+         cumulative[i] = sum;
+      }
+
+      // draw, then merge repeated draws of the same point (ascending order)
+      int[] drawn = new int[size];
+      for (int s = 0; s < size; s++)
+         drawn[s] = search(cumulative, gen.nextDouble() * sum);
+      Arrays.sort(drawn);
+
+      int distinct = 0;
+      for (int s = 0; s < size; s++)
+         if (s == 0 || drawn[s] != drawn[s - 1])
+            distinct++;
+      double[] values = new double[distinct * n];
+      double[] sampleWeights = new double[distinct];
+      int d = -1;
+      for (int s = 0; s < size; s++) {
+         int i = drawn[s];
+         if (s == 0 || i != drawn[s - 1]) {
+            points.copy(i, values, ++d * n);
+         }
+         double q = i == 0 ? cumulative[0] : cumulative[i] - cumulative[i - 1];
+         double w = weights == null ? 1 : weights[i];
+         sampleWeights[d] += w * sum / (size * q);
+      }
+      return new Coreset(PointStore.wrap(values, n), sampleWeights);
+   }
+
+   /**
+    * First index i with cumulative[i] > target, or the last index.
+    */
+   private static int search(double[] cumulative, double target) {
+      int lo = 0;
+      int hi = cumulative.length - 1;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (cumulative[mid] > target)
+            hi = mid;
+         else
+            lo = mid + 1;
+      }
+      return lo;
+   }
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+   public PointStore getPoints() {
+      return points;
+   }
+
+   public double[] getWeights() {
+      return weights;
+   }
+
+   /**
+    * Number of distinct sampled points.
+    */
+   public int size() {
+      return points.size();
+   }
+
+   /**
+    * Weighted cost of the centroids on the coreset: an estimate of their
+    * WCSS on the full data.
+    */
+   public double cost(double[][] centroids, boolean L1norm) {
+      double cost = 0;
+      for (int i = 0; i < points.size(); i++) {
+         int j = points.nearest(i, centroids, L1norm);
+         cost += weights[i] * (L1norm ? points.L1(i, centroids[j]) : points.L2(i, centroids[j]));
+      }
+      return cost;
+   }
+
+
+
+   /***********************************************************************
+    * Tuning
+    **********************************************************************/
+
+   /**
+    * Prints, for growing coreset sizes, the relative error between the WCSS
+    * KMeans estimates on the coreset and the WCSS of the same centroids on
+    * the full data, and the time taken.
+    * Usage: Coreset file.csv k [L1norm]
+    */
+   public static void main(String[] args) throws IOException {
+      String file = args.length > 0 ? args[0] : "TestData.csv";
+      int k = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+      boolean L1norm = args.length > 2 && Boolean.parseBoolean(args[2]);
+      PointStore points = PointStore.of(CSVreader.read(file));
+
+      System.out.println("size\terror\tseconds");
+      for (int size = 10 * k; size < 2 * points.size(); size *= 3) {
+         long start = System.currentTimeMillis();
+         KMeans clustering = new KMeans.Builder(k, points)
+                                       .coreset(size)
+                                       .useL1norm(L1norm)
+                                       .seed(size)
+                                       .build();
+         long end = System.currentTimeMillis();
+         System.out.println(size + "\t" + clustering.getCoresetError() + "\t" + (end - start) / 1000.0);
+      }
+   }
+}
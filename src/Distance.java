@@ -0,0 +1,228 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Distances between n-dimensional points.
+ *
+ * The inner loops are delegated to a Kernels implementation that is picked
+ * once, when the class is loaded: VectorKernels (src/incubator, Java Vector
+ * API) if it was compiled in and the JVM runs with
+ * --add-modules jdk.incubator.vector, otherwise the scalar loops below.
+ * Set -Dkmeans.simd=false to force the scalar loops.
+ *
+ * The vectorized loops add up the coordinates in a different order, so the
+ * distances may differ from the scalar ones in the last bits.
+ *
+ * Points may also be float[] (see PointStore.of(float[][])). Centroids stay
+ * double[], and every float coordinate is widened before it is subtracted,
+ * so distances are accumulated in double either way.
+ ************************************************************************/
+
+class Distance {
+
+   /**
+    * Inner loops. Implementations do no dimension checks: the public methods
+    * below check once, then call these for every pair.
+    */
+   interface Kernels {
+
+      /**
+       * L1 distance between x[offset, offset + y.length) and y.
+       */
+      double L1(double[] x, int offset, double[] y);
+
+      /**
+       * Squared L2 distance between x[offset, offset + y.length) and y.
+       */
+      double L2(double[] x, int offset, double[] y);
+
+      /**
+       * Index of the centroid nearest to x[offset, offset + n), where n is
+       * the dimension of the centroids. Ties go to the lowest index.
+       */
+      int nearest(double[] x, int offset, double[][] centroids, boolean L1norm);
+
+      /**
+       * L1 distance between x[offset, offset + y.length) and y.
+       */
+      double L1(float[] x, int offset, double[] y);
+
+      /**
+       * Squared L2 distance between x[offset, offset + y.length) and y.
+       */
+      double L2(float[] x, int offset, double[] y);
+
+      /**
+       * Index of the centroid nearest to x[offset, offset + n).
+       */
+      int nearest(float[] x, int offset, double[][] centroids, boolean L1norm);
+   }
+
+   static final Kernels KERNELS = load();
+
+   private static Kernels load() {
+      if (Boolean.parseBoolean(System.getProperty("kmeans.simd", "true"))) {
+         try {
+            return (Kernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+         } catch (Exception e) {
+            // not compiled in, or no vector support in this JVM
+         } catch (LinkageError e) {
+            // compiled in, but jdk.incubator.vector was not added at run time
+         }
+      }
+      return new Scalar();
+   }
+
+   /**
+    * Name of the kernels in use, for logs and benchmarks.
+    */
+   static String kernels() {
+      return KERNELS.getClass().getName();
+   }
+
+   /**
+    * L1 norm: distance(X,Y) = sum_i=1:n[|x_i - y_i|]
+    * <P> Minkowski distance of order 1.
+    * @param x
+    * @param y
+    * @return
+    */
+   public static double L1(double[] x, double[] y) {
+      if (x.length != y.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.L1(x, 0, y);
+   }
+
+   /**
+    * L2 norm: distance(X,Y) = sum_i=1:n[(x_i-y_i)^2]
+    * <P> Squared Euclidean distance (the square of the Minkowski distance
+    * of order 2).
+    * @param x
+    * @param y
+    * @return
+    */
+   public static double L2(double[] x, double[] y) {
+      if (x.length != y.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.L2(x, 0, y);
+   }
+
+   /**
+    * L1 distance between x[offset, offset + y.length) and y.
+    */
+   public static double L1(double[] x, int offset, double[] y) {
+      if (offset + y.length > x.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.L1(x, offset, y);
+   }
+
+   /**
+    * Squared L2 distance between x[offset, offset + y.length) and y.
+    */
+   public static double L2(double[] x, int offset, double[] y) {
+      if (offset + y.length > x.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.L2(x, offset, y);
+   }
+
+   /**
+    * Index of the centroid nearest to x (L1 or squared L2 distance). All
+    * centroids must have the dimension of x. Ties go to the lowest index.
+    */
+   public static int nearest(double[] x, double[][] centroids, boolean L1norm) {
+      if (centroids[0].length != x.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.nearest(x, 0, centroids, L1norm);
+   }
+
+   /**
+    * Index of the centroid nearest to x[offset, offset + n), where n is the
+    * dimension of the centroids.
+    */
+   public static int nearest(double[] x, int offset, double[][] centroids, boolean L1norm) {
+      if (offset + centroids[0].length > x.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.nearest(x, offset, centroids, L1norm);
+   }
+
+   /**
+    * L1 distance between the float point x[offset, offset + y.length) and y.
+    */
+   public static double L1(float[] x, int offset, double[] y) {
+      if (offset + y.length > x.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.L1(x, offset, y);
+   }
+
+   /**
+    * Squared L2 distance between the float point x[offset, offset + y.length) and y.
+    */
+   public static double L2(float[] x, int offset, double[] y) {
+      if (offset + y.length > x.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.L2(x, offset, y);
+   }
+
+   /**
+    * Index of the centroid nearest to the float point x[offset, offset + n).
+    */
+   public static int nearest(float[] x, int offset, double[][] centroids, boolean L1norm) {
+      if (offset + centroids[0].length > x.length) throw new IllegalArgumentException("dimension error");
+      return KERNELS.nearest(x, offset, centroids, L1norm);
+   }
+
+   /**
+    * Plain loops, one coordinate at a time.
+    */
+   static class Scalar implements Kernels {
+
+      public double L1(double[] x, int offset, double[] y) {
+         double dist = 0;
+         for (int i = 0; i < y.length; i++)
+            dist += Math.abs(x[offset + i] - y[i]);
+         return dist;
+      }
+
+      public double L2(double[] x, int offset, double[] y) {
+         double dist = 0;
+         for (int i = 0; i < y.length; i++) {
+            double diff = x[offset + i] - y[i];
+            dist += diff * diff;
+         }
+         return dist;
+      }
+
+      public int nearest(double[] x, int offset, double[][] centroids, boolean L1norm) {
+         int best = 0;
+         double bestDist = Double.POSITIVE_INFINITY;
+         for (int j = 0; j < centroids.length; j++) {
+            double dist = L1norm ? L1(x, offset, centroids[j]) : L2(x, offset, centroids[j]);
+            if (dist < bestDist) {
+               bestDist = dist;
+               best = j;
+            }
+         }
+         return best;
+      }
+
+      public double L1(float[] x, int offset, double[] y) {
+         double dist = 0;
+         for (int i = 0; i < y.length; i++)
+            dist += Math.abs(x[offset + i] - y[i]);
+         return dist;
+      }
+
+      public double L2(float[] x, int offset, double[] y) {
+         double dist = 0;
+         for (int i = 0; i < y.length; i++) {
+            double diff = x[offset + i] - y[i];
+            dist += diff * diff;
+         }
+         return dist;
+      }
+
+      public int nearest(float[] x, int offset, double[][] centroids, boolean L1norm) {
+         int best = 0;
+         double bestDist = Double.POSITIVE_INFINITY;
+         for (int j = 0; j < centroids.length; j++) {
+            double dist = L1norm ? L1(x, offset, centroids[j]) : L2(x, offset, centroids[j]);
+            if (dist < bestDist) {
+               bestDist = dist;
+               best = j;
+            }
+         }
+         return best;
+      }
+   }
+}
@@ -0,0 +1,152 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Finds the distinct points of a PointStore by hashing their
+ * coordinates, used by KMeans to check that there are enough distinct
+ * points and to collapse repeated points into weighted representatives.
+ *
+ * Two points are equal when all their coordinates are == (so 0.0 equals
+ * -0.0, and a point with a NaN coordinate equals nothing).
+ ************************************************************************/
+
+import java.util.Arrays;
+
+class Duplicates {
+
+   final PointStore points;   // the distinct points, in order of first appearance
+   final double[] weights;    // total weight of the copies of each distinct point
+   final int[] index;         // point i of the input is distinct point index[i]
+
+   private Duplicates(PointStore points, double[] weights, int[] index) {
+      this.points = points;
+      this.weights = weights;
+      this.index = index;
+   }
+
+   /**
+    * Collapses equal points into one. Each distinct point weighs the sum of
+    * the weights of its copies (their number if 'weights' is null). The
+    * distinct points are copied into a new heap store, in double precision.
+    */
+   static Duplicates collapse(PointStore points, double[] weights) {
+      int m = points.size();
+      int n = points.dimension();
+      Table table = new Table(n, 1024);
+      int[] index = new int[m];
+      double[] sums = new double[1024];
+      double[] x = new double[n];
+
+      for (int i = 0; i < m; i++) {
+         points.copy(i, x);
+         int d = table.add(x);
+         if (d == sums.length)
+            sums = Arrays.copyOf(sums, 2 * sums.length);
+         sums[d] += weights == null ? 1 : weights[i];
+         index[i] = d;
+      }
+
+      int size = table.size();
+      return new Duplicates(PointStore.wrap(table.rows(), n), Arrays.copyOf(sums, size), index);
+   }
+
+   /**
+    * Number of distinct points, counting no further than 'limit'.
+    */
+   static int countDistinct(PointStore points, int limit) {
+      int n = points.dimension();
+      Table table = new Table(n, Math.min(limit, 1024));
+      double[] x = new double[n];
+      for (int i = 0; i < points.size() && table.size() < limit; i++) {
+         points.copy(i, x);
+         table.add(x);
+      }
+      return table.size();
+   }
+
+   /**
+    * Hash set of points with open addressing. Stores every distinct point
+    * once, row-major in a single array. Also used by StreamingKMeans to
+    * buffer its seeding points.
+    */
+   static class Table {
+      private final int n;
+      private double[] rows;    // distinct points, row-major
+      private int[] hashes;     // hash of every distinct point
+      private int size;         // # of distinct points
+      private int[] slots;      // index of a distinct point + 1, or 0 if the slot is free
+
+      Table(int n, int capacity) {
+         this.n = n;
+         capacity = Math.max(capacity, 16);
+         rows = new double[capacity * n];
+         hashes = new int[capacity];
+         slots = new int[Integer.highestOneBit(capacity) * 4];
+      }
+
+      int size() {
+         return size;
+      }
+
+      /**
+       * The distinct points, trimmed to size.
+       */
+      double[] rows() {
+         return Arrays.copyOf(rows, size * n);
+      }
+
+      /**
+       * Index of x among the distinct points, adding it if it is new.
+       */
+      int add(double[] x) {
+         int hash = hash(x);
+         int mask = slots.length - 1;
+         for (int s = hash & mask; ; s = (s + 1) & mask) {
+            int entry = slots[s] - 1;
+            if (entry < 0) {
+               insert(x, hash, s);
+               return size - 1;
+            }
+            if (hashes[entry] == hash && equal(entry, x))
+               return entry;
+         }
+      }
+
+      private void insert(double[] x, int hash, int slot) {
+         if (size == hashes.length) {
+            hashes = Arrays.copyOf(hashes, 2 * size);
+            rows = Arrays.copyOf(rows, 2 * size * n);
+         }
+         System.arraycopy(x, 0, rows, size * n, n);
+         hashes[size] = hash;
+         slots[slot] = ++size;
+
+         // keep the table at most half full
+         if (2 * size > slots.length) {
+            slots = new int[2 * slots.length];
+            int mask = slots.length - 1;
+            for (int e = 0; e < size; e++) {
+               int s = hashes[e] & mask;
+               while (slots[s] != 0)
+                  s = (s + 1) & mask;
+               slots[s] = e + 1;
+            }
+         }
+      }
+
+      private boolean equal(int entry, double[] x) {
+         int offset = entry * n;
+         for (int j = 0; j < n; j++)
+            if (rows[offset + j] != x[j])
+               return false;
+         return true;
+      }
+
+      private static int hash(double[] x) {
+         long h = 1;
+         for (int j = 0; j < x.length; j++)
+            h = 31 * h + Double.doubleToLongBits(x[j] + 0.0);   // + 0.0: -0.0 hashes like 0.0
+         int hash = (int) (h ^ (h >>> 32));
+         return (hash ^ (hash >>> 16)) * 0x9E3779B1;
+      }
+   }
+}
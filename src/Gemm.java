@@ -0,0 +1,150 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Blocked assignment step for high-dimensional data, used by
+ * KMeans' GEMM engine.
+ *
+ * Squared Euclidean distances are expanded as
+ *
+ *    |x - c|^2 = |x|^2 - 2 x.c + |c|^2
+ *
+ * The point norms are computed once, the centroid norms once per step, so
+ * that what is left is the matrix product of the points and the centroids.
+ * It is computed tile by tile (a block of points against a block of
+ * centroids, over a block of dimensions), so that each tile stays in cache
+ * while it is reused, rather than streaming every centroid past every point.
+ *
+ * The expansion cancels when points are far from the origin compared to
+ * their distances, so results match the pairwise distances within
+ * floating-point tolerance rather than bit for bit.
+ *
+ * Only valid for the (squared) Euclidean distance.
+ ************************************************************************/
+
+class Gemm {
+
+   private static final int POINT_BLOCK = 64;       // points per tile
+   private static final int CENTROID_BLOCK = 32;    // centroids per tile (multiple of 4)
+   private static final int DEPTH_BLOCK = 256;      // dimensions per tile
+
+   private final PointStore points;
+   private final int n;
+   private final double[] norms;                    // |x|^2 of every point
+
+   /**
+    * Centroids packed row-major into one array, with their squared norms.
+    */
+   static class Centroids {
+      final double[] values;
+      final double[] norms;
+      final int k;
+
+      Centroids(double[][] centroids) {
+         k = centroids.length;
+         int n = centroids[0].length;
+         values = new double[k * n];
+         norms = new double[k];
+         for (int j = 0; j < k; j++) {
+            System.arraycopy(centroids[j], 0, values, j * n, n);
+            for (int d = 0; d < n; d++)
+               norms[j] += centroids[j][d] * centroids[j][d];
+         }
+      }
+   }
+
+   /**
+    * Caches the squared norms of the points. The points are not copied.
+    */
+   Gemm(PointStore points) {
+      this.points = points;
+      this.n = points.dimension();
+      norms = new double[points.size()];
+      double[] x = new double[n];
+      for (int i = 0; i < norms.length; i++) {
+         points.copy(i, x);
+         for (int d = 0; d < n; d++)
+            norms[i] += x[d] * x[d];
+      }
+   }
+
+   /**
+    * |x|^2 of point i.
+    */
+   double norm(int i) {
+      return norms[i];
+   }
+
+   /**
+    * Writes the nearest centroid of every point in [from, to) into
+    * 'assignment'. Ties go to the lowest index, as in KMeans' assignment step.
+    */
+   void assign(Centroids centroids, int[] assignment, int from, int to) {
+      int k = centroids.k;
+      double[] tile = new double[POINT_BLOCK * n];
+      double[] dots = new double[POINT_BLOCK * CENTROID_BLOCK];
+      double[] best = new double[POINT_BLOCK];
+
+      for (int i0 = from; i0 < to; i0 += POINT_BLOCK) {
+         int rows = Math.min(POINT_BLOCK, to - i0);
+         for (int r = 0; r < rows; r++) {
+            points.copy(i0 + r, tile, r * n);
+            best[r] = Double.POSITIVE_INFINITY;
+         }
+
+         for (int j0 = 0; j0 < k; j0 += CENTROID_BLOCK) {
+            int cols = Math.min(CENTROID_BLOCK, k - j0);
+            for (int t = 0; t < rows * CENTROID_BLOCK; t++)
+               dots[t] = 0;
+            for (int d0 = 0; d0 < n; d0 += DEPTH_BLOCK)
+               multiply(tile, rows, centroids.values, j0, cols, d0, Math.min(n, d0 + DEPTH_BLOCK), dots);
+
+            for (int r = 0; r < rows; r++)
+               for (int c = 0; c < cols; c++) {
+                  double dist = norms[i0 + r] - 2 * dots[r * CENTROID_BLOCK + c] + centroids.norms[j0 + c];
+                  if (dist < best[r]) {
+                     best[r] = dist;
+                     assignment[i0 + r] = j0 + c;
+                  }
+               }
+         }
+      }
+   }
+
+   /**
+    * dots[r][c] += tile[r][d0, d1) . centroid[j0 + c][d0, d1). Four centroids
+    * at a time, so each coordinate of a point is loaded once per four products.
+    */
+   private void multiply(double[] tile, int rows, double[] centroids, int j0, int cols,
+                         int d0, int d1, double[] dots) {
+      for (int r = 0; r < rows; r++) {
+         int x = r * n;
+         int out = r * CENTROID_BLOCK;
+         int c = 0;
+         for (; c + 4 <= cols; c += 4) {
+            int c0 = (j0 + c) * n;
+            int c1 = c0 + n;
+            int c2 = c1 + n;
+            int c3 = c2 + n;
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for (int d = d0; d < d1; d++) {
+               double v = tile[x + d];
+               s0 += v * centroids[c0 + d];
+               s1 += v * centroids[c1 + d];
+               s2 += v * centroids[c2 + d];
+               s3 += v * centroids[c3 + d];
+            }
+            dots[out + c] += s0;
+            dots[out + c + 1] += s1;
+            dots[out + c + 2] += s2;
+            dots[out + c + 3] += s3;
+         }
+         for (; c < cols; c++) {
+            int c0 = (j0 + c) * n;
+            double s = 0;
+            for (int d = d0; d < d1; d++)
+               s += tile[x + d] * centroids[c0 + d];
+            dots[out + c] += s;
+         }
+      }
+   }
+}
@@ -0,0 +1,325 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Keeps a clustering up to date while points are added and
+ * removed, instead of re-running KMeans on the whole data.
+ *
+ * ALGORITHM: the clustering is kept as per-cluster sums and weights, so
+ * that adding or removing a point costs one nearest-centroid search or one
+ * subtraction. refine() then runs Lloyd iterations that only revisit the
+ * points that may have changed cluster: as in KMeans' HAMERLY engine, every
+ * point keeps an upper bound on the distance to its own centroid and a
+ * lower bound on the distance to any other, both loosened by how far the
+ * centroids moved. After a small change to the data, the centroids move
+ * little and most points are ruled out by their bounds alone.
+ *
+ * Start it from a KMeans result: new IncrementalKMeans(points, weights,
+ * clustering.getCentroids(), L1norm) assigns the points once and computes
+ * their bounds. Points are identified by their index: the points passed to
+ * the constructor first, then every add() in order. Removed points keep
+ * their index (their assignment becomes -1).
+ ************************************************************************/
+
+import java.util.Arrays;
+
+public class IncrementalKMeans {
+
+   private final int k;
+   private final int n;
+   private final boolean L1norm;
+
+   // the points: 'base' first, then the added ones, row-major in 'added'
+   private final PointStore base;
+   private final double[] baseWeights;   // null --> every base point weighs 1
+   private double[] added;
+   private double[] addedWeights;
+   private int size;                     // # of points, removed ones included
+
+   // clustering
+   private final double[][] centroids;
+   private final double[][] sums;        // weighted sum of the points of each cluster
+   private final double[] clustSize;     // total weight of each cluster
+   private int[] assignment;             // -1 for removed points
+
+   // Hamerly bounds, in the metric itself (L1, or Euclidean)
+   private double[] upper;               // >= distance to the own centroid
+   private double[] lower;               // <= distance to any other centroid
+
+   /**
+    * Assigns every point to the nearest of 'centroids' (copied), typically
+    * those of a KMeans run on the same points. 'weights' may be null.
+    */
+   public IncrementalKMeans(PointStore points, double[] weights, double[][] centroids, boolean L1norm) {
+      if (weights != null && weights.length != points.size())
+         throw new IllegalArgumentException("Required: one weight per point");
+      if (centroids.length < 2)
+         throw new IllegalArgumentException("Required: at least 2 centroids");
+      k = centroids.length;
+      n = points.dimension();
+      this.L1norm = L1norm;
+      base = points;
+      baseWeights = weights;
+      added = new double[16 * n];
+      addedWeights = new double[16];
+
+      this.centroids = new double[k][];
+      for (int c = 0; c < k; c++) {
+         if (centroids[c].length != n)
+            throw new IllegalArgumentException("dimension error");
+         this.centroids[c] = centroids[c].clone();
+      }
+      sums = new double[k][n];
+      clustSize = new double[k];
+
+      size = points.size();
+      int capacity = Math.max(16, size);
+      assignment = new int[capacity];
+      upper = new double[capacity];
+      lower = new double[capacity];
+      double[] x = new double[n];
+      for (int i = 0; i < size; i++) {
+         points.copy(i, x);
+         place(i, x, weight(i));
+      }
+   }
+
+   /***********************************************************************
+    * Updates
+    **********************************************************************/
+
+   /**
+    * Adds a point of weight 1 to its nearest cluster. Returns its index.
+    */
+   public int add(double[] x) {
+      return add(x, 1);
+   }
+
+   /**
+    * Adds a point of the given weight to its nearest cluster. The centroids
+    * only move on refine(). Returns the index of the point.
+    */
+   public int add(double[] x, double weight) {
+      if (x.length != n)
+         throw new IllegalArgumentException("dimension error");
+      if (!(weight >= 0) || Double.isInfinite(weight))
+         throw new IllegalArgumentException("Required: non-negative, finite weights. Ex: 1.0");
+
+      int a = size - base.size();
+      if (a == addedWeights.length) {
+         added = Arrays.copyOf(added, 2 * added.length);
+         addedWeights = Arrays.copyOf(addedWeights, 2 * a);
+      }
+      System.arraycopy(x, 0, added, a * n, n);
+      addedWeights[a] = weight;
+
+      if (size == assignment.length) {
+         assignment = Arrays.copyOf(assignment, 2 * size);
+         upper = Arrays.copyOf(upper, 2 * size);
+         lower = Arrays.copyOf(lower, 2 * size);
+      }
+      place(size, x, weight);
+      return size++;
+   }
+
+   /**
+    * Removes point i from its cluster. The centroids only move on refine().
+    */
+   public void remove(int i) {
+      if (i < 0 || i >= size || assignment[i] < 0)
+         throw new IllegalArgumentException("Required: index of a point that was not removed");
+      double[] x = point(i);
+      int c = assignment[i];
+      double w = weight(i);
+      for (int j = 0; j < n; j++)
+         sums[c][j] -= w * x[j];
+      clustSize[c] -= w;
+      assignment[i] = -1;
+   }
+
+   /**
+    * Lloyd iterations from the current assignment, until no point changes
+    * cluster or after 'maxIterations'. Each moves the centroids to the means
+    * of their clusters, then reassigns only the points whose bounds allow a
+    * change. An empty cluster keeps its centroid. Returns the # of points
+    * that changed cluster.
+    */
+   public int refine(int maxIterations) {
+      int total = 0;
+      for (int iteration = 0; iteration < maxIterations; iteration++) {
+         double[] moved = update();
+         int changed = reassign(moved);
+         total += changed;
+         if (changed == 0)
+            break;
+      }
+      return total;
+   }
+
+   /**
+    * Moves every non-empty cluster's centroid to its mean. Returns how far
+    * each centroid moved.
+    */
+   private double[] update() {
+      double[] moved = new double[k];
+      double[] mean = new double[n];
+      for (int c = 0; c < k; c++) {
+         if (clustSize[c] <= 0)
+            continue;
+         for (int j = 0; j < n; j++)
+            mean[j] = sums[c][j] / clustSize[c];
+         moved[c] = metric(mean, centroids[c]);
+         System.arraycopy(mean, 0, centroids[c], 0, n);
+      }
+      return moved;
+   }
+
+   /**
+    * Assignment step restricted by the bounds (see KMeans.HamerlyBounds).
+    */
+   private int reassign(double[] moved) {
+      // the largest and second largest move, for the lower bounds
+      int farthest = 0;
+      for (int c = 1; c < k; c++)
+         if (moved[c] > moved[farthest])
+            farthest = c;
+      double second = 0;
+      for (int c = 0; c < k; c++)
+         if (c != farthest)
+            second = Math.max(second, moved[c]);
+
+      // half the distance from every centroid to the nearest other one
+      double[] half = new double[k];
+      Arrays.fill(half, Double.POSITIVE_INFINITY);
+      for (int c = 0; c < k; c++)
+         for (int d = c + 1; d < k; d++) {
+            double dist = metric(centroids[c], centroids[d]) / 2;
+            half[c] = Math.min(half[c], dist);
+            half[d] = Math.min(half[d], dist);
+         }
+
+      int changed = 0;
+      for (int i = 0; i < size; i++) {
+         int a = assignment[i];
+         if (a < 0)
+            continue;
+         upper[i] += moved[a];
+         lower[i] -= a == farthest ? second : moved[farthest];
+
+         double bound = Math.max(half[a], lower[i]);
+         if (upper[i] <= bound)
+            continue;
+         double[] x = point(i);
+         upper[i] = metric(x, centroids[a]);
+         if (upper[i] <= bound)
+            continue;
+
+         // the bounds do not settle it: compare to every centroid
+         double w = weight(i);
+         for (int j = 0; j < n; j++)
+            sums[a][j] -= w * x[j];
+         clustSize[a] -= w;
+         place(i, x, w);
+         if (assignment[i] != a)
+            changed++;
+      }
+      return changed;
+   }
+
+   /**
+    * Assigns point i (= x) to its nearest centroid, adds it to that cluster
+    * and resets its bounds.
+    */
+   private void place(int i, double[] x, double w) {
+      int best = 0;
+      double bestDist = Double.POSITIVE_INFINITY;
+      double secondDist = Double.POSITIVE_INFINITY;
+      for (int c = 0; c < k; c++) {
+         double dist = L1norm ? Distance.L1(x, centroids[c]) : Distance.L2(x, centroids[c]);
+         if (dist < bestDist) {
+            secondDist = bestDist;
+            bestDist = dist;
+            best = c;
+         }
+         else if (dist < secondDist)
+            secondDist = dist;
+      }
+
+      assignment[i] = best;
+      for (int j = 0; j < n; j++)
+         sums[best][j] += w * x[j];
+      clustSize[best] += w;
+      upper[i] = L1norm ? bestDist : Math.sqrt(bestDist);
+      lower[i] = L1norm ? secondDist : Math.sqrt(secondDist);
+   }
+
+   /***********************************************************************
+    * Points
+    **********************************************************************/
+
+   /**
+    * A copy of point i.
+    */
+   private double[] point(int i) {
+      if (i < base.size())
+         return base.row(i);
+      int a = i - base.size();
+      return Arrays.copyOfRange(added, a * n, (a + 1) * n);
+   }
+
+   private double weight(int i) {
+      if (i < base.size())
+         return baseWeights == null ? 1 : baseWeights[i];
+      return addedWeights[i - base.size()];
+   }
+
+   /**
+    * Distance in the metric itself (L1, or Euclidean), which obeys the
+    * triangle inequality.
+    */
+   private double metric(double[] x, double[] y) {
+      return L1norm ? Distance.L1(x, y) : Math.sqrt(Distance.L2(x, y));
+   }
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+
+   /**
+    * A copy of the centroids.
+    */
+   public double[][] getCentroids() {
+      double[][] copy = new double[k][];
+      for (int c = 0; c < k; c++)
+         copy[c] = centroids[c].clone();
+      return copy;
+   }
+
+   /**
+    * Cluster of every point, by index; -1 for removed points.
+    */
+   public int[] getAssignment() {
+      return Arrays.copyOf(assignment, size);
+   }
+
+   /**
+    * WCSS of the current points and centroids. Costs a pass over the points.
+    */
+   public double getWCSS() {
+      double WCSS = 0;
+      for (int i = 0; i < size; i++) {
+         int a = assignment[i];
+         if (a < 0)
+            continue;
+         double[] x = point(i);
+         WCSS += weight(i) * (L1norm ? Distance.L1(x, centroids[a]) : Distance.L2(x, centroids[a]));
+      }
+      return WCSS;
+   }
+
+   /**
+    * Number of points, removed ones included.
+    */
+   public int size() {
+      return size;
+   }
+}
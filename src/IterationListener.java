@@ -0,0 +1,28 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Callback after every Lloyd iteration (or mini-batch step) of a
+ * KMeans run, e.g. to export progress to a metrics system while build()
+ * is still running. See KMeans.Builder.listener().
+ *
+ * With parallelism > 1, restarts run at the same time and call the
+ * listener from their worker threads: implementations must be thread-safe
+ * and quick, since the run waits for them.
+ ************************************************************************/
+
+public interface IterationListener {
+
+   /**
+    * @param restart    index of the restart, in [0, iterations)
+    * @param step       iterations done so far by this restart, from 1
+    * @param WCSS       WCSS after the iteration (mini-batch: the smoothed
+    *                   estimate; LLOYD with the L1 norm: the WCSS of the
+    *                   centroids before the iteration's update, which the
+    *                   stopping test also uses)
+    * @param reassigned # of points that changed cluster in the iteration;
+    *                   -1 if not tracked (KD_TREE, mini-batch)
+    * @param stats      statistics of the restart so far (read-only; only
+    *                   valid during the call)
+    */
+   void iterationDone(int restart, int step, double WCSS, long reassigned, KMeansStats.Restart stats);
+}
@@ -0,0 +1,310 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: k-d tree over the data points, used by KMeans to run the
+ * filtering algorithm (Kanungo et al., "An Efficient k-Means Clustering
+ * Algorithm: Analysis and Implementation", 2002).
+ *
+ * Every node stores the bounding box, the total weight, the weighted vector
+ * sum and the weighted sum of squared norms of the points below it. An assignment
+ * step then walks the tree with a shrinking set of candidate centroids:
+ * as soon as a single candidate is left for a node, the whole node is
+ * assigned to it at once by adding the node's precomputed sums, without
+ * touching its points. Works best for low-dimensional data.
+ *
+ * Only valid for the (squared) Euclidean distance.
+ ************************************************************************/
+
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+class KDTree {
+
+   private static final int LEAF_SIZE = 16;   // max # of points in a leaf
+
+   private final PointStore points;
+   private final double[] weights;            // weight of every point; null --> all 1
+   private final int[] index;                 // points in tree order
+   private final int n;
+   private final Node root;
+
+   /**
+    * Node of the tree, covering the points index[lo, hi).
+    */
+   private static class Node {
+      final int lo;
+      final int hi;
+      final double[] min;       // bounding box
+      final double[] max;
+      final double[] mid;       // center of the bounding box
+      final double[] sum;       // weighted vector sum of the points
+      double sumSq;             // weighted sum of the squared norms of the points
+      double weight;            // total weight of the points
+      Node left;                // null for leaves
+      Node right;
+
+      Node(int lo, int hi, int n) {
+         this.lo = lo;
+         this.hi = hi;
+         min = new double[n];
+         max = new double[n];
+         mid = new double[n];
+         sum = new double[n];
+      }
+
+      int count() {
+         return hi - lo;
+      }
+   }
+
+   /**
+    * Per-cluster sums collected by one filtering pass.
+    */
+   static class Sums {
+      final double[][] sums;    // weighted vector sum of the points assigned to each centroid
+      final double[] sumSq;     // weighted sum of the squared norms of those points
+      final double[] weights;   // total weight of the points assigned to each centroid
+      long distances;           // distances to centroids computed (from points and box centers)
+
+      Sums(int k, int n) {
+         sums = new double[k][n];
+         sumSq = new double[k];
+         weights = new double[k];
+      }
+
+      void add(Sums other) {
+         for (int j = 0; j < weights.length; j++) {
+            weights[j] += other.weights[j];
+            sumSq[j] += other.sumSq[j];
+            for (int d = 0; d < sums[j].length; d++)
+               sums[j][d] += other.sums[j][d];
+         }
+         distances += other.distances;
+      }
+   }
+
+   /**
+    * Builds the tree. The points are not copied or reordered. 'weights' may
+    * be null (every point weighs 1).
+    */
+   KDTree(PointStore points, double[] weights) {
+      this.points = points;
+      this.weights = weights;
+      this.n = points.dimension();
+      index = new int[points.size()];
+      for (int i = 0; i < index.length; i++)
+         index[i] = i;
+      root = build(0, index.length);
+   }
+
+   private Node build(int lo, int hi) {
+      Node node = new Node(lo, hi, n);
+      for (int d = 0; d < n; d++) {
+         node.min[d] = Double.POSITIVE_INFINITY;
+         node.max[d] = Double.NEGATIVE_INFINITY;
+      }
+      double[] x = new double[n];
+      for (int i = lo; i < hi; i++) {
+         points.copy(index[i], x);
+         double w = weight(index[i]);
+         node.weight += w;
+         for (int d = 0; d < n; d++) {
+            node.min[d] = Math.min(node.min[d], x[d]);
+            node.max[d] = Math.max(node.max[d], x[d]);
+            node.sum[d] += w * x[d];
+            node.sumSq += w * x[d] * x[d];
+         }
+      }
+
+      // split along the widest side of the box, at the median
+      int widest = 0;
+      for (int d = 0; d < n; d++) {
+         node.mid[d] = (node.min[d] + node.max[d]) / 2;
+         if (node.max[d] - node.min[d] > node.max[widest] - node.min[widest])
+            widest = d;
+      }
+      if (hi - lo <= LEAF_SIZE || node.max[widest] == node.min[widest])
+         return node;   // leaf (or all points identical)
+
+      int median = (lo + hi) >>> 1;
+      select(lo, hi - 1, median, widest);
+      node.left = build(lo, median);
+      node.right = build(median, hi);
+      return node;
+   }
+
+   private double weight(int p) {
+      return weights == null ? 1 : weights[p];
+   }
+
+   /**
+    * Quickselect: reorders index[lo..hi] so that index[kth] holds the point with
+    * the kth smallest coordinate d, with smaller ones before it, larger after.
+    */
+   private void select(int lo, int hi, int kth, int d) {
+      while (hi > lo) {
+         double pivot = points.get(index[(lo + hi) >>> 1], d);
+         int i = lo;
+         int j = hi;
+         while (i <= j) {
+            while (points.get(index[i], d) < pivot) i++;
+            while (points.get(index[j], d) > pivot) j--;
+            if (i <= j) {
+               int tmp = index[i];
+               index[i] = index[j];
+               index[j] = tmp;
+               i++;
+               j--;
+            }
+         }
+         if (kth <= j)
+            hi = j;
+         else if (kth >= i)
+            lo = i;
+         else
+            return;
+      }
+   }
+
+   /**
+    * One assignment step of the filtering algorithm. Returns the weighted sum,
+    * sum of squared norms and total weight of the points closest to each
+    * centroid. When
+    * 'assignment' is non-null, the nearest centroid of every point is written
+    * into it as well (this touches every point, so it is only meant for the
+    * final step of a run).
+    *
+    * Subtrees with more than 'forkSize' points are filtered as separate
+    * fork/join tasks when called from inside a ForkJoinPool.
+    */
+   Sums filter(double[][] centroids, int[] assignment, int forkSize) {
+      int k = centroids.length;
+      int[] candidates = new int[k];
+      for (int j = 0; j < k; j++)
+         candidates[j] = j;
+
+      Filter task = new Filter(root, centroids, candidates, k, assignment, forkSize);
+      return ForkJoinTask.inForkJoinPool() ? task.invoke() : task.compute();
+   }
+
+   /**
+    * Filters one subtree with its own sums, so that tasks never share writes.
+    */
+   private class Filter extends RecursiveTask<Sums> {
+      private static final long serialVersionUID = 1L;
+
+      private final Node node;
+      private final double[][] centroids;
+      private final int[] candidates;   // indices into centroids, ascending
+      private final int numCandidates;
+      private final int[] assignment;
+      private final int forkSize;
+
+      Filter(Node node, double[][] centroids, int[] candidates, int numCandidates,
+            int[] assignment, int forkSize) {
+         this.node = node;
+         this.centroids = centroids;
+         this.candidates = candidates;
+         this.numCandidates = numCandidates;
+         this.assignment = assignment;
+         this.forkSize = forkSize;
+      }
+
+      @Override
+      protected Sums compute() {
+         Sums out = new Sums(centroids.length, n);
+         filter(node, candidates, numCandidates, out);
+         return out;
+      }
+
+      private void filter(Node node, int[] candidates, int numCandidates, Sums out) {
+         // leaf: assign its points one by one
+         if (node.left == null) {
+            out.distances += (long) node.count() * numCandidates;
+            double[] x = new double[n];
+            for (int i = node.lo; i < node.hi; i++) {
+               int p = index[i];
+               points.copy(p, x);
+               int best = nearest(x, candidates, numCandidates);
+               double w = weight(p);
+               out.weights[best] += w;
+               for (int d = 0; d < n; d++) {
+                  out.sums[best][d] += w * x[d];
+                  out.sumSq[best] += w * x[d] * x[d];
+               }
+               if (assignment != null)
+                  assignment[p] = best;
+            }
+            return;
+         }
+
+         // the candidate closest to the middle of the box survives for sure;
+         // drop every candidate that is farther than it from the whole box
+         int closest = nearest(node.mid, candidates, numCandidates);
+         out.distances += numCandidates;
+         int[] remaining = new int[numCandidates];
+         int numRemaining = 0;
+         for (int c = 0; c < numCandidates; c++) {
+            int j = candidates[c];
+            if (j == closest || !isFarther(centroids[j], centroids[closest], node))
+               remaining[numRemaining++] = j;
+         }
+
+         // a single candidate left: assign the whole node at once
+         if (numRemaining == 1) {
+            out.weights[closest] += node.weight;
+            out.sumSq[closest] += node.sumSq;
+            for (int d = 0; d < n; d++)
+               out.sums[closest][d] += node.sum[d];
+            if (assignment != null)
+               for (int i = node.lo; i < node.hi; i++)
+                  assignment[index[i]] = closest;
+            return;
+         }
+
+         if (node.count() > forkSize && ForkJoinTask.inForkJoinPool()) {
+            Filter left = new Filter(node.left, centroids, remaining, numRemaining, assignment, forkSize);
+            left.fork();
+            filter(node.right, remaining, numRemaining, out);
+            out.add(left.join());
+         }
+         else {
+            filter(node.left, remaining, numRemaining, out);
+            filter(node.right, remaining, numRemaining, out);
+         }
+      }
+
+      /**
+       * Nearest of the candidate centroids to x. Ties go to the lowest index,
+       * as in KMeans' assignment step.
+       */
+      private int nearest(double[] x, int[] candidates, int numCandidates) {
+         int best = candidates[0];
+         double bestDist = Double.POSITIVE_INFINITY;
+         for (int c = 0; c < numCandidates; c++) {
+            double dist = Distance.L2(x, centroids[candidates[c]]);
+            if (dist < bestDist) {
+               bestDist = dist;
+               best = candidates[c];
+            }
+         }
+         return best;
+      }
+
+      /**
+       * True if every point of the node's box is strictly closer to zStar than
+       * to z. It suffices to check the corner of the box furthest in the
+       * direction of z - zStar.
+       */
+      private boolean isFarther(double[] z, double[] zStar, Node node) {
+         double distZ = 0;
+         double distZStar = 0;
+         for (int d = 0; d < n; d++) {
+            double v = z[d] > zStar[d] ? node.max[d] : node.min[d];
+            distZ += (v - z[d]) * (v - z[d]);
+            distZStar += (v - zStar[d]) * (v - zStar[d]);
+         }
+         return distZ > distZStar;
+      }
+   }
+}
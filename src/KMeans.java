@@ -16,11 +16,18 @@
 // TODO: consistency with terms "clustering" and "iteration" 
 // (assignment + update step or 'x' number of those)
 
-// TODO: Give user option to define stopping criteria based on time elapsed
-
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class KMeans {
 
@@ -29,25 +36,82 @@ public class KMeans {
     **********************************************************************/
    // user-defined parameters
    private int k;                // number of centroids
-   private double[][] points;    // n-dimensional data points. 
+   private PointStore points;    // n-dimensional data points. 
 
    // optional parameters
    private int iterations;       // number of times to repeat the clustering. Choose run with lowest WCSS
-   private boolean pp;           // true --> KMeans++. false --> basic random sampling
+   private Seeding seeding;      // how to choose the initial centroids
+   private int chainLength;      // Seeding.MCMC: length of each Markov chain
    private double epsilon;       // stops running when improvement in error < epsilon
    private boolean useEpsilon;   // true  --> stop running when marginal improvement in WCSS < epsilon
                                  // false --> stop running when 0 improvement
    private boolean L1norm;       // true --> L1 norm to calculate distance; false --> L2 norm
-
-   // calculated from dimension of points[][]
+   private Engine engine;        // how the assignment step finds the nearest centroids
+   private int batchSize;        // > 0 --> mini-batch mode: # of points sampled per step
+   private int maxSteps;         // mini-batch mode: max # of steps per run
+   private int parallelism;      // number of worker threads shared by restarts and chunks
+   private int chunkSize;        // number of points per task in the assignment and update steps
+   private boolean hasSeed;      // true --> restarts are reproducible from 'seed'
+   private long seed;            // seed for the random number generators of the restarts
+   private double[] weights;     // weight of every point; null --> every point weighs 1
+   private int[] duplicates;     // collapsed duplicates: input point i is point duplicates[i]
+   private int coresetSize;      // > 0 --> restarts run on a weighted sample of this many points
+   private double[][] initialCentroids;  // warm start: first centroids of every run; null --> seeding
+   private int[] initialAssignment;      // warm start: prior cluster of every point, or null
+   private boolean meansOfAssignment;    // warm start: initialCentroids are the means of initialAssignment
+
+   // coreset mode: the full data, assigned once the restarts on the sample are done
+   private PointStore fullPoints;
+   private double[] fullWeights;
+   private double coresetError = Double.NaN;
+
+   // output file for the assignment, mapped for writing; null --> kept in 'assignment'
+   private BinaryWriter.MappedInts assignmentFile;
+
+   // called after every iteration of every restart; null --> none
+   private IterationListener listener;
+
+   // anytime stopping: the best result so far once the budget is spent
+   private long timeLimit;       // > 0 --> stop after this many milliseconds
+   private long deadline;        // System.nanoTime() at which the time limit is up
+   private AtomicBoolean cancel; // set to true (by any thread) --> stop; null --> never
+   private volatile boolean stoppedEarly;  // true --> the time limit or cancel cut the build short
+
+   // phase timers and counters of this build
+   private KMeansStats stats;
+
+   // calculated from the dimensions of the point store
    private int m;                // number of data points   (# of pixels for PhenoRipper)  
    private int n;                // number of dimensions    (# of channels for PhenoRipper)
 
+   // cumulative sum of the weights, to draw points by weight (null if unweighted)
+   private double[] cumulativeWeights;
+
    // output
    private double[][] centroids; // position vectors of centroids                      dim(2): (k) by (number of channels)
    private int[] assignment;     // assigns each point to nearest centroid [0, k-1]    dim(1): (number of pixels)
    private double WCSS;          // within-cluster sum-of-squares. Cost function to minimize
 
+   // mini-batch mode: # of steps without improvement of the smoothed WCSS before stopping
+   private static final int PATIENCE = 10;
+
+   // k-d tree over the points, built once and shared by all restarts (KD_TREE only)
+   private KDTree tree;
+
+   // cached point norms for the blocked L2 assignment step (GEMM only)
+   private Gemm gemm;
+
+   // shared by all restarts; null when running single-threaded
+   private ForkJoinPool pool;
+
+   // a scheduler's pool to run the restarts in instead of a pool of our own,
+   // and its scratch arrays shared with other builds (see KMeansScheduler)
+   private ForkJoinPool sharedPool;
+   private BufferPool buffers;
+
+   // LLOYD: buffers given back by finished runs, reused by later ones
+   private ConcurrentLinkedQueue<Workspace> workspaces;
+
    // timing information
    private long start;
    private long end;
@@ -65,8 +129,9 @@ public class KMeans {
    /**
     * The proper way to construct a KMeans object: from an inner class object.
     * @param builder See inner class named Builder
+    * @param cluster false --> only prepares the data, for Phases
     */
-   private KMeans(Builder builder) {
+   private KMeans(Builder builder, boolean cluster) {
       // start timing
       start = System.currentTimeMillis();
       
@@ -74,22 +139,143 @@ public class KMeans {
       k = builder.k;
       points = builder.points;
       iterations = builder.iterations;
-      pp = builder.pp;
+      seeding = builder.seeding;
+      chainLength = builder.chainLength;
       epsilon = builder.epsilon;
       useEpsilon = builder.useEpsilon;
       L1norm = builder.L1norm;
+      engine = builder.engine;
+      batchSize = builder.batchSize;
+      maxSteps = builder.maxSteps;
+      parallelism = builder.parallelism;
+      chunkSize = builder.chunkSize;
+      hasSeed = builder.hasSeed;
+      seed = builder.seed;
+      weights = builder.weights;
+      coresetSize = builder.coresetSize;
+      assignmentFile = builder.assignmentFile;
+      listener = builder.listener;
+      timeLimit = builder.timeLimit;
+      cancel = builder.cancel;
+      sharedPool = builder.pool;
+      buffers = builder.buffers;
+      long prepare = System.nanoTime();
+      deadline = prepare + timeLimit * 1000000L;
+
+      // warm start: every run would start from the same centroids, so run once
+      if (builder.initialCentroids != null || builder.initialAssignment != null) {
+         iterations = 1;
+         initialCentroids = builder.initialCentroids != null ? builder.initialCentroids
+                            : means(points, weights, builder.initialAssignment);
+         initialAssignment = builder.initialAssignment;
+         meansOfAssignment = builder.initialCentroids == null;
+      }
+      stats = new KMeansStats(iterations);
+
+      // cluster each distinct point once, weighted by its # of copies
+      if (builder.collapse) {
+         Duplicates distinct = Duplicates.collapse(points, weights);
+         if (distinct.points.size() < k)
+            throw new IllegalArgumentException("Required: # of distinct points >= # of clusters");
+         points = distinct.points;
+         weights = distinct.weights;
+         duplicates = distinct.index;
+         initialAssignment = null;   // indexed by the input points
+      }
+
+      // run the restarts on a small weighted sample of the points
+      if (coresetSize > 0 && coresetSize < points.size()) {
+         Random gen = hasSeed ? new Random(~seed) : new Random();
+         Coreset coreset = Coreset.sample(points, weights, coresetSize, L1norm, gen);
+         if (Duplicates.countDistinct(coreset.getPoints(), k) == k) {
+            fullPoints = points;
+            fullWeights = weights;
+            points = coreset.getPoints();
+            weights = coreset.getWeights();
+            initialAssignment = null;
+         }
+      }
 
       // get dimensions to set last 2 fields
-      m = points.length;
-      n = points[0].length;
+      m = points.size();
+      n = points.dimension();
+
+      if (weights != null) {
+         cumulativeWeights = new double[m];
+         double total = 0;
+         for (int i = 0; i < m; i++)
+            cumulativeWeights[i] = total += weights[i];
+      }
+
+      // (a tree or norms built for the builder's points only fit them as they are)
+      boolean unchanged = points == builder.points && weights == builder.weights;
+      if (engine == Engine.KD_TREE)
+         tree = unchanged && builder.tree != null ? builder.tree : new KDTree(points, weights);
+      else if (engine == Engine.GEMM)
+         gemm = unchanged && builder.gemm != null ? builder.gemm : new Gemm(points);
+
+      stats.prepareNanos = System.nanoTime() - prepare;
+      if (!cluster)
+         return;
 
       // run KMeans++ clustering algorithm
       run();
+      long finish = System.nanoTime();
+
+      // write the assignment out, copies included, instead of keeping it
+      if (assignmentFile != null && assignment != null) {
+         int count = duplicates == null ? m : duplicates.length;
+         for (int i = 0; i < count; i++)
+            assignmentFile.set(i, assignment[duplicates == null ? i : duplicates[i]]);
+         assignment = null;
+      }
+
+      // one assignment per input point, copies included
+      if (duplicates != null && assignment != null) {
+         int[] expanded = new int[duplicates.length];
+         for (int i = 0; i < expanded.length; i++)
+            expanded[i] = assignment[duplicates[i]];
+         assignment = expanded;
+      }
+      stats.finishNanos += System.nanoTime() - finish;
       
       end = System.currentTimeMillis();
    }
 
 
+   /**
+    * Ways to choose the initial centroids.
+    */
+   public enum Seeding {
+      /** Basic random sampling (without replacement). */
+      RANDOM,
+      /** KMeans++: k sequential passes, each sampling one centroid by D(x)^2. */
+      PLUSPLUS,
+      /** k-means||: about ln(m) data-parallel passes that oversample, then reclustering. */
+      SCALABLE,
+      /** AFK-MC^2: approximates KMeans++ with short Markov chains after a single pass. */
+      MCMC
+   }
+
+
+   /**
+    * Algorithms for the assignment step. All of them produce the same 
+    * assignments (up to ties between equally distant centroids).
+    */
+   public enum Engine {
+      /** Computes the distance from every point to every centroid. */
+      LLOYD,
+      /** Hamerly's bounds: skips points that provably keep their centroid. Best for small k. */
+      HAMERLY,
+      /** Elkan's bounds: also skips single centroids. Best for large k, needs m * k doubles. */
+      ELKAN,
+      /** Kanungo's filtering on a k-d tree of the points. L2 norm only, best for few dimensions. */
+      KD_TREE,
+      /** Blocked point-by-centroid products with cached norms. L2 norm only, best for many dimensions. */
+      GEMM
+   }
+
+
    /**
     * Builder class for constructing KMeans objects.
     * 
@@ -98,44 +284,79 @@ public class KMeans {
    public static class Builder {
       // required
       private final int k;
-      private final double[][] points;
+      private final PointStore points;
 
       // optional (default values given)
       private int iterations     = 10;
-      private boolean pp         = true;
+      private Seeding seeding    = Seeding.PLUSPLUS;
+      private int chainLength    = 200;
       private double epsilon     = .001;
       private boolean useEpsilon = true;
       private boolean L1norm = true;
+      private Engine engine      = Engine.LLOYD;
+      private int batchSize      = 0;
+      private int maxSteps       = 1000;
+      private int parallelism    = 1;
+      private int chunkSize      = 1 << 14;
+      private boolean hasSeed    = false;
+      private long seed;
+      private double[] weights   = null;
+      private boolean collapse   = false;
+      private int coresetSize    = 0;
+      private BinaryWriter.MappedInts assignmentFile = null;
+      private double[][] initialCentroids = null;
+      private int[] initialAssignment = null;
+      private IterationListener listener = null;
+      private long timeLimit     = 0;
+      private AtomicBoolean cancel = null;
+      private KDTree tree        = null;   // see share()
+      private Gemm gemm          = null;
+      private ForkJoinPool pool  = null;   // see schedule()
+      private BufferPool buffers = null;
 
       /**
        * Sets required parameters and checks that are a sufficient # of distinct
-       * points to run KMeans.
+       * points to run KMeans. The points are copied into a flat PointStore.
        */
       public Builder(int k, double[][] points) {
+         this(k, PointStore.of(checkSize(k, points)));
+      }
+
+      /**
+       * Same as Builder(int, double[][]), but the points are kept in single
+       * precision: half the memory and bandwidth of doubles. Centroids, sums
+       * and WCSS are still computed in double.
+       */
+      public Builder(int k, float[][] points) {
+         this(k, PointStore.of(checkSize(k, points)));
+      }
+
+      /**
+       * Sets required parameters and checks that are a sufficient # of 
+       * distinct points to run KMeans. The points are used as they are, so an
+       * off-heap or memory-mapped store stays off the heap.
+       */
+      public Builder(int k, PointStore points) {
          // check dimensions are valid
-         if (k > points.length)
+         if (k > points.size())
             throw new IllegalArgumentException("Required: # of points >= # of clusters");
-         
+
          // check that there is a sufficient # of distinct points to run KMeans
-         HashSet<double[]> hashSet = new HashSet<double[]>(k);
-         int distinct = 0;
-      
-         for (int i = 0; i < points.length; i++) {
-            if (!hashSet.contains(points[i])) {
-               distinct++;
-               if (distinct >= k)
-                  break;
-               hashSet.add(points[i]);
-            }
-         }
-         
-         if (distinct < k)
+         // (points are compared by their coordinates; stops after k of them)
+         if (Duplicates.countDistinct(points, k) < k)
             throw new IllegalArgumentException("Required: # of distinct points >= # of clusters");
-         
+
          this.k = k;
          this.points = points;
       }
 
+      private static <T> T[] checkSize(int k, T[] points) {
+         // check dimensions are valid (before copying the points)
+         if (k > points.length)
+            throw new IllegalArgumentException("Required: # of points >= # of clusters");
+         return points;
+      }
+
       
       /**
        * Sets optional parameter. Default value is 50. 
@@ -149,9 +370,31 @@ public class KMeans {
 
       /**
        * Sets optional parameter. Default value is true.
+       * true --> Seeding.PLUSPLUS. false --> Seeding.RANDOM.
        */
       public Builder pp(boolean pp) {
-         this.pp = pp;
+         this.seeding = pp ? Seeding.PLUSPLUS : Seeding.RANDOM;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is Seeding.PLUSPLUS.
+       */
+      public Builder seeding(Seeding seeding) {
+         if (seeding == null)
+            throw new IllegalArgumentException("Required: a seeding. Ex: Seeding.PLUSPLUS");
+         this.seeding = seeding;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 200. Only used by Seeding.MCMC:
+       * longer chains are closer to KMeans++, shorter ones are faster.
+       */
+      public Builder chainLength(int chainLength) {
+         if (chainLength < 1)
+            throw new IllegalArgumentException("Required: positive chain length. Ex: 200");
+         this.chainLength = chainLength;
          return this;
       }
 
@@ -182,11 +425,265 @@ public class KMeans {
          return this;
       }
 
+      /**
+       * Sets optional parameter. Default value is Engine.LLOYD.
+       */
+      public Builder engine(Engine engine) {
+         if (engine == null)
+            throw new IllegalArgumentException("Required: an engine. Ex: Engine.HAMERLY");
+         this.engine = engine;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 0 (off: every iteration uses
+       * every point). Otherwise each step of a run samples this many points,
+       * assigns them and moves their centroids with per-centroid learning
+       * rates, until a smoothed estimate of the WCSS stops improving by 
+       * 'epsilon'. A final pass over all points gives the assignment and WCSS.
+       */
+      public Builder miniBatch(int batchSize) {
+         if (batchSize < 0)
+            throw new IllegalArgumentException("Required: non-negative batch size. Ex: 1024");
+         this.batchSize = batchSize;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 1000. Maximum number of 
+       * mini-batch steps per run; only used in mini-batch mode.
+       */
+      public Builder maxSteps(int maxSteps) {
+         if (maxSteps < 1)
+            throw new IllegalArgumentException("Required: positive number of steps. Ex: 1000");
+         this.maxSteps = maxSteps;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 1 (everything runs on the calling
+       * thread). Restarts and the chunks of each assignment and update step share 
+       * one pool of this many threads, so the two never oversubscribe the machine.
+       * Use Runtime.getRuntime().availableProcessors() to use every core.
+       */
+      public Builder parallelism(int parallelism) {
+         if (parallelism < 1)
+            throw new IllegalArgumentException("Required: positive parallelism. Ex: 4");
+         this.parallelism = parallelism;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 16384. Only matters when
+       * parallelism > 1: smaller chunks balance better, larger chunks merge less.
+       */
+      public Builder chunkSize(int chunkSize) {
+         if (chunkSize < 1)
+            throw new IllegalArgumentException("Required: positive chunk size. Ex: 16384");
+         this.chunkSize = chunkSize;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. By default every build is seeded randomly.
+       * With a seed, results are reproducible regardless of parallelism.
+       */
+      public Builder seed(long seed) {
+         this.seed = seed;
+         this.hasSeed = true;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. By default every point weighs 1. A point of 
+       * weight w counts as w copies of it in the update step, the WCSS, 
+       * D(x)^2 seeding and mini-batch sampling. Weights must be non-negative
+       * and one per point. The array is not copied.
+       */
+      public Builder weights(double[] weights) {
+         if (weights == null || weights.length != points.size())
+            throw new IllegalArgumentException("Required: one weight per point");
+         double total = 0;
+         for (double w : weights) {
+            if (!(w >= 0) || Double.isInfinite(w))
+               throw new IllegalArgumentException("Required: non-negative, finite weights. Ex: 1.0");
+            total += w;
+         }
+         if (total <= 0)
+            throw new IllegalArgumentException("Required: at least one positive weight");
+         this.weights = weights;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is false. If true, equal points
+       * are first collapsed into a single point weighing as much as all its
+       * copies, so the clustering costs scale with the # of distinct points.
+       * getAssignment() still has one entry per input point. Worth it when
+       * points repeat a lot (e.g. pixels of low bit depth); costs a pass over
+       * the points and a copy of the distinct ones.
+       */
+      public Builder collapseDuplicates(boolean collapse) {
+         this.collapse = collapse;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 0 (off). If positive, the
+       * points are first summarized by a coreset: about this many points, drawn
+       * with probability growing with their distance to the mean and weighted
+       * so that the cost of any centroids on them estimates their cost on all
+       * points. All restarts then run on the coreset, and a single pass over
+       * all points gives the final assignment and WCSS. getCoresetError() tells
+       * how far the estimate was off; see Coreset.main() to pick a size.
+       */
+      public Builder coreset(int size) {
+         if (size < 0)
+            throw new IllegalArgumentException("Required: non-negative coreset size. Ex: 10000");
+         this.coresetSize = size;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is none (seeding picks them).
+       * Warm start: every run starts from these centroids, typically those of
+       * a previous clustering of similar data, instead of seeding. Since all
+       * runs would then be alike, a single run is made (iterations is 
+       * ignored). The centroids are copied.
+       */
+      public Builder initialCentroids(double[][] centroids) {
+         if (centroids.length != k)
+            throw new IllegalArgumentException("Required: k initial centroids");
+         double[][] copy = new double[k][];
+         for (int i = 0; i < k; i++) {
+            if (centroids[i].length != points.dimension())
+               throw new IllegalArgumentException("dimension error");
+            copy[i] = centroids[i].clone();
+         }
+         this.initialCentroids = copy;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is none. Warm start from a prior
+       * assignment (a cluster in [0, k) for every point): unless initial 
+       * centroids are given too, the runs start from the means of these 
+       * clusters. With Engine.LLOYD, the first pass then counts only the 
+       * points that really change cluster, so an assignment that is already
+       * stable costs a single pass. A single run is made.
+       */
+      public Builder initialAssignment(int[] assignment) {
+         if (assignment.length != points.size())
+            throw new IllegalArgumentException("Required: one cluster per point");
+         for (int c : assignment)
+            if (c < 0 || c >= k)
+               throw new IllegalArgumentException("Required: clusters in [0, k)");
+         this.initialAssignment = assignment.clone();
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is none (the assignment is kept
+       * on the heap). Creates a single-column int32 binary file (see 
+       * BinaryWriter) and writes the assignment there instead: getAssignment()
+       * then returns null, and BinaryReader.readInts(outFile) reads it back.
+       * With coreset(), the assignment of all points goes to the file chunk by
+       * chunk and is never held on the heap. Without it, the restarts still
+       * work on an int[# of points] on the heap (for a mapped file, one the
+       * restarts pass on to each other), which is copied to the file at the end.
+       */
+      public Builder assignmentFile(String outFile) throws IOException {
+         this.assignmentFile = BinaryWriter.mapInts(outFile, points.size());
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is none. Called after every
+       * Lloyd iteration (mini-batch step) of every restart, with the WCSS,
+       * the # of reassigned points and the restart's KMeansStats so far
+       * (see IterationListener for which WCSS). Must be thread-safe when
+       * parallelism > 1.
+       */
+      public Builder listener(IterationListener listener) {
+         this.listener = listener;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 0 (no limit). Milliseconds
+       * that build() may take: once they are up, restarts that have not 
+       * started are skipped and running ones stop after their current 
+       * iteration, and the best result so far is kept. The first restart
+       * always completes seeding and one iteration, and the final pass
+       * that makes the assignment and WCSS exact (over all points, in 
+       * coreset mode) is always made, so build() can overrun the limit by
+       * that much; other restarts that are still seeding when the time is
+       * up are dropped. See isStoppedEarly().
+       */
+      public Builder timeLimit(long millis) {
+         if (millis < 0)
+            throw new IllegalArgumentException("Required: time limit >= 0");
+         this.timeLimit = millis;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is none. Cooperative 
+       * cancellation: setting 'cancel' to true from another thread stops 
+       * build() as a time limit that is up does (see timeLimit()).
+       */
+      public Builder cancel(AtomicBoolean cancel) {
+         this.cancel = cancel;
+         return this;
+      }
+
       /**
        * Build a KMeans object
        */
       public KMeans build() {
-         return new KMeans(this);
+         if (engine == Engine.KD_TREE && L1norm)
+            throw new IllegalArgumentException("Required: L2 norm for the KD_TREE engine. Ex: useL1norm(false)");
+         if (engine == Engine.GEMM && L1norm)
+            throw new IllegalArgumentException("Required: L2 norm for the GEMM engine. Ex: useL1norm(false)");
+         if (batchSize > 0 && engine != Engine.LLOYD)
+            throw new IllegalArgumentException("Required: Engine.LLOYD in mini-batch mode");
+         if (coresetSize > 0 && coresetSize < k)
+            throw new IllegalArgumentException("Required: coreset size >= # of clusters");
+         return new KMeans(this, true);
+      }
+
+      /**
+       * Prepares the data as build() does, but clusters nothing: the steps of
+       * a single run are then made one call at a time, so that benchmarks can
+       * time each of them (see benchmarks/) and KMeansSweep can seed once for
+       * all k. Not part of the API.
+       */
+      Phases phases() {
+         return new KMeans(this, false).new Phases();
+      }
+
+      /**
+       * Reuses a k-d tree (KD_TREE) or point norms (GEMM) already built for
+       * these points and weights, instead of building them again, so that
+       * builds for several k share them (see KMeansSweep). Either may be null.
+       * Not part of the API.
+       */
+      Builder share(KDTree tree, Gemm gemm) {
+         this.tree = tree;
+         this.gemm = gemm;
+         return this;
+      }
+
+      /**
+       * Runs the restarts and chunks as tasks of 'pool' (when parallelism > 1)
+       * rather than in a pool created for this build, and takes scratch arrays
+       * from 'buffers'. Either may be null. Set by KMeansScheduler; not part of
+       * the API.
+       */
+      Builder schedule(ForkJoinPool pool, BufferPool buffers) {
+         this.pool = pool;
+         this.buffers = buffers;
+         return this;
       }
    }
 
@@ -199,319 +696,1576 @@ public class KMeans {
     * Run KMeans algorithm
     */
    private void run() {
-      // for choosing the best run
-      double bestWCSS = Double.POSITIVE_INFINITY;
-      double[][] bestCentroids = new double[0][0];
-      int[] bestAssignment = new int[0];
+      // every restart gets its own generator, seeded up front so that the
+      // result does not depend on the order in which restarts are executed
+      Random gen = hasSeed ? new Random(seed) : new Random();
+      long[] seeds = new long[iterations];
+      for (int i = 0; i < iterations; i++)
+         seeds[i] = gen.nextLong();
 
       // run multiple times and then choose the best run
-      for (int n = 0; n < iterations; n++) {
-         cluster();
-
-         // store info if it was the best run so far
-         if (WCSS < bestWCSS) {
-            bestWCSS = WCSS;
-            bestCentroids = centroids;
-            bestAssignment = assignment;
+      workspaces = new ConcurrentLinkedQueue<Workspace>();
+
+      // out of core, every restart hands its scratch arrays of one value per
+      // point (assignment, distances, bounds) on to the next, scheduler or not
+      BufferPool shared = buffers;
+      if (buffers == null && points.onDisk())
+         buffers = new BufferPool(Long.MAX_VALUE);
+      long restarts = System.nanoTime();
+      Clustering best;
+      if (parallelism == 1) {
+         best = null;
+         for (int i = 0; i < iterations; i++) {
+            if (i > 0 && expired())
+               break;      // keep the best of the restarts made so far
+            Clustering run = new Clustering(i, new Random(seeds[i]));
+            run.cluster();
+            best = better(best, run);
+         }
+         stats.restartsNanos = System.nanoTime() - restarts;
+         if (fullPoints != null)
+            best.assignFullData();
+      }
+      else {
+         pool = sharedPool != null ? sharedPool : new ForkJoinPool(parallelism);
+         try {
+            best = pool.invoke(new Restarts(seeds, 0, iterations));
+            stats.restartsNanos = System.nanoTime() - restarts;
+            if (fullPoints != null) {
+               final Clustering run = best;
+               pool.invoke(new RecursiveAction() {
+                  private static final long serialVersionUID = 1L;
+
+                  @Override
+                  protected void compute() {
+                     run.assignFullData();
+                  }
+               });
+            }
+         } finally {
+            if (pool != sharedPool)
+               pool.shutdown();
+            pool = null;
          }
       }
 
+      // the best run keeps its workspace: the others' buffers go to other builds
+      for (Workspace work : workspaces)
+         give(work.assignment);
+      workspaces = null;
+      buffers = shared;
+      stats.finishNanos = System.nanoTime() - restarts - stats.restartsNanos;
+      stats.setBest(best.stats.getIndex());
+
       // keep info from best run
-      WCSS = bestWCSS;
-      centroids = bestCentroids;
-      assignment = bestAssignment;
+      WCSS = best.WCSS;
+      centroids = best.centroids;
+      assignment = best.assignment;
    }
 
-
    /**
-    * Perform KMeans clustering algorithm once.
+    * Chooses the run with the lowest WCSS. Ties go to the first argument so
+    * that the serial and parallel reductions pick the same run. The other
+    * run gives its buffers back for the next restarts.
     */
-   private void cluster() {
-      // continue to re-cluster until marginal gains are small enough
-      chooseInitialCentroids();
-      WCSS = Double.POSITIVE_INFINITY; 
-      double prevWCSS;
-      do {  
-         assignmentStep();   // assign points to the closest centroids
-
-         updateStep();       // update centroids
-
-         prevWCSS = WCSS;    // check if cost function meets stopping criteria
-         calcWCSS();
-      } while (!stop(prevWCSS));
+   private static Clustering better(Clustering a, Clustering b) {
+      if (a == null)
+         return b;
+      if (b == null)
+         return a;
+      Clustering best = b.WCSS < a.WCSS ? b : a;
+      (best == a ? b : a).release();
+      return best;
    }
 
-
-   /** 
-    * Assigns to each data point the nearest centroid.
+   /**
+    * Runs the restarts [lo, hi) as a fork/join task and reduces them to the 
+    * one with the lowest WCSS. Only the best run of each half is kept alive, so
+    * memory stays bounded by the number of workers rather than the number of
+    * restarts.
     */
-   private void assignmentStep() {
-      assignment = new int[m];
+   private class Restarts extends RecursiveTask<Clustering> {
+      private static final long serialVersionUID = 1L;
 
-      double tempDist;
-      double minValue;
-      int minLocation;
+      private final long[] seeds;
+      private final int lo;
+      private final int hi;
 
-      for (int i = 0; i < m; i++) {
-         minLocation = 0;
-         minValue = Double.POSITIVE_INFINITY;
-         for (int j = 0; j < k; j++) {
-            tempDist = distance(points[i], centroids[j]);
-            if (tempDist < minValue) {
-               minValue = tempDist;
-               minLocation = j;
-            }
+      Restarts(long[] seeds, int lo, int hi) {
+         this.seeds = seeds;
+         this.lo = lo;
+         this.hi = hi;
+      }
+
+      @Override
+      protected Clustering compute() {
+         if (hi - lo == 1) {
+            if (lo > 0 && expired())
+               return null;   // skipped: the first restart always runs
+            Clustering run = new Clustering(lo, new Random(seeds[lo]));
+            run.cluster();
+            return run;
          }
 
-         assignment[i] = minLocation;
+         int mid = (lo + hi) >>> 1;
+         Restarts left = new Restarts(seeds, lo, mid);
+         left.fork();
+         Clustering right = new Restarts(seeds, mid, hi).compute();
+         return better(left.join(), right);
       }
-
    }
 
 
-   /** 
-    * Updates the centroids.
+   /**
+    * Work done on the points [from, to) by a single task.
     */
-   private void updateStep() {
-      // reuse memory is faster than re-allocation
-      for (int i = 0; i < k; i++)
-         for (int j = 0; j < n; j++)
-            centroids[i][j] = 0;
-      
-      int[] clustSize = new int[k];
+   private interface Chunk<T> {
+      T apply(int from, int to);
+   }
 
-      // sum points assigned to each cluster
-      for (int i = 0; i < m; i++) {
-         clustSize[assignment[i]]++;
-         for (int j = 0; j < n; j++)
-            centroids[assignment[i]][j] += points[i][j];
+   /**
+    * Splits the points into chunks of 'chunkSize' and runs them on the shared
+    * pool. Every chunk produces its own partial result, so workers never write
+    * to shared state; the caller merges the returned partials.
+    */
+   private <T> List<T> forEachChunk(final Chunk<T> body) {
+      List<T> partials = new ArrayList<T>();
+      if (pool == null || m <= chunkSize || !ForkJoinTask.inForkJoinPool()) {
+         if (!points.onDisk()) {
+            partials.add(body.apply(0, m));
+            return partials;
+         }
+         // stream over the file, paging in the next chunk during this one
+         for (int from = 0; from < m; from += chunkSize) {
+            int to = Math.min(m, from + chunkSize);
+            points.prefetch(to, Math.min(m, to + chunkSize));
+            partials.add(body.apply(from, to));
+         }
+         return partials;
       }
-      
-      // store indices of empty clusters
-      HashSet<Integer> emptyCentroids = new HashSet<Integer>();
-
-      // divide to get averages -> centroids
-      for (int i = 0; i < k; i++) {
-         if (clustSize[i] == 0)
-            emptyCentroids.add(i);
 
-         else
-            for (int j = 0; j < n; j++)
-               centroids[i][j] /= clustSize[i];
-      }
-      
-      // gracefully handle empty clusters by assigning to that centroid an unused data point
-      if (emptyCentroids.size() != 0) {
-         HashSet<double[]> nonemptyCentroids = new HashSet<double[]>(k - emptyCentroids.size());
-         for (int i = 0; i < k; i++)
-            if (!emptyCentroids.contains(i))
-               nonemptyCentroids.add(centroids[i]);
-         
-         Random r = new Random();
-         for (int i : emptyCentroids)
-            while (true) {
-               int rand = r.nextInt(points.length);
-               if (!nonemptyCentroids.contains(points[rand])) {
-                  nonemptyCentroids.add(points[rand]);
-                  centroids[i] = points[rand];
-                  break;
-               }
+      List<RecursiveTask<T>> tasks = new ArrayList<RecursiveTask<T>>();
+      for (int from = 0; from < m; from += chunkSize) {
+         final int lo = from;
+         final int hi = Math.min(m, from + chunkSize);
+         tasks.add(new RecursiveTask<T>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected T compute() {
+               points.prefetch(hi, Math.min(m, hi + chunkSize));
+               return body.apply(lo, hi);
             }
-
+         });
       }
       
+      ForkJoinTask.invokeAll(tasks);
+      for (RecursiveTask<T> task : tasks)
+         partials.add(task.join());
+      return partials;
    }
 
-
-   /***********************************************************************
-    * Choose initial centroids
-    **********************************************************************/
    /**
-    * Uses either plusplus (KMeans++) or a basic randoms sample to choose initial centroids
-    */
-   private void chooseInitialCentroids() {
-      if (pp)
-         plusplus();
-      else
-         basicRandSample();
-   }
-
-   /** 
-    * Randomly chooses (without replacement) k data points as initial centroids. 
+    * Per-chunk cluster sums and sizes of the update step.
     */
-   private void basicRandSample() {
-      centroids = new double[k][n];
-      double[][] copy = points;
+   private static class Partial {
+      final double[][] sums;
+      final double[] clustSize;  // total weight of the points of each cluster
+      final double[] sumSq;    // GEMM only: weighted sum of the squared norms of the points
+      final double[] cost;     // LLOYD only: weighted sum of the distances to each centroid
+      int changed;             // LLOYD only: # of points whose assignment changed
+
+      Partial(int k, int n) {
+         sums = new double[k][n];
+         clustSize = new double[k];
+         sumSq = new double[k];
+         cost = new double[k];
+      }
 
-      Random gen = new Random();
+      void add(Partial other) {
+         for (int i = 0; i < clustSize.length; i++) {
+            clustSize[i] += other.clustSize[i];
+            sumSq[i] += other.sumSq[i];
+            cost[i] += other.cost[i];
+            for (int j = 0; j < sums[i].length; j++)
+               sums[i][j] += other.sums[i][j];
+         }
+         changed += other.changed;
+      }
 
-      int rand;
-      for (int i = 0; i < k; i++) {
-         rand = gen.nextInt(m - i);
-         for (int j = 0; j < n; j++) {
-            centroids[i][j] = copy[rand][j];       // store chosen centroid
-            copy[rand][j] = copy[m - 1 - i][j];    // ensure sampling without replacement
+      void clear() {
+         for (int i = 0; i < clustSize.length; i++) {
+            clustSize[i] = 0;
+            sumSq[i] = 0;
+            cost[i] = 0;
+            Arrays.fill(sums[i], 0);
          }
+         changed = 0;
       }
    }
 
-   /** 
-    * Randomly chooses (without replacement) k data points as initial centroids using a
-    * weighted probability distribution (proportional to D(x)^2 where D(x) is the 
-    * distance from a data point to the nearest, already chosen centroid). 
+   /**
+    * Buffers of the fused LLOYD iteration: the assignment, one Partial per
+    * chunk and the tasks that fill them. A run takes a workspace when it 
+    * starts and the losing run of every comparison gives its workspace back 
+    * (see better()), so later restarts reuse the buffers and an iteration 
+    * allocates nothing.
     */
-   // TODO: see if some of this code is extraneous (can be deleted)
-   private void plusplus() {
-      centroids = new double[k][n];       
-      double[] distToClosestCentroid = new double[m];
-      double[] weightedDistribution  = new double[m];  // cumulative sum of squared distances
-
-      Random gen = new Random();
-      int choose = 0;
-
-      for (int c = 0; c < k; c++) {
-
-         // first centroid: choose any data point
-         if (c == 0)
-            choose = gen.nextInt(m);
-
-         // after first centroid, use a weighted distribution
-         else {
-
-            // check if the most recently added centroid is closer to any of the points than previously added ones
-            for (int p = 0; p < m; p++) {
-               // gives chosen points 0 probability of being chosen again -> sampling without replacement
-               double tempDistance = Distance.L2(points[p], centroids[c - 1]); // need L2 norm here, not L1
-
-               // base case: if we have only chosen one centroid so far, nothing to compare to
-               if (c == 1)
-                  distToClosestCentroid[p] = tempDistance;
-
-               else { // c != 1 
-                  if (tempDistance < distToClosestCentroid[p])
-                     distToClosestCentroid[p] = tempDistance;
+   private class Workspace {
+      final int[] assignment = takeInts(m);
+      final Partial[] partials;
+      final RecursiveAction[] tasks;   // null: every chunk on the calling thread
+      double[][] centroids;            // centroids of the current pass
+
+      Workspace() {
+         // a file is streamed in chunks even on a single thread
+         boolean chunked = (pool != null || points.onDisk()) && m > chunkSize;
+         int chunks = chunked ? (m + chunkSize - 1) / chunkSize : 1;
+         partials = new Partial[chunks];
+         for (int c = 0; c < chunks; c++)
+            partials[c] = new Partial(k, n);
+
+         if (chunks == 1 || pool == null) {
+            tasks = null;
+            return;
+         }
+         tasks = new RecursiveAction[chunks];
+         for (int c = 0; c < chunks; c++) {
+            final int chunk = c;
+            tasks[c] = new RecursiveAction() {
+               private static final long serialVersionUID = 1L;
+
+               @Override
+               protected void compute() {
+                  fuse(chunk);
                }
+            };
+         }
+      }
 
-               // no need to square because the distance is the square of the euclidean dist
-               if (p == 0)
-                  weightedDistribution[0] = distToClosestCentroid[0];
-               else weightedDistribution[p] = weightedDistribution[p-1] + distToClosestCentroid[p];
+      /**
+       * Assigns every point to the nearest of 'centroids' and returns the 
+       * merged sums, sizes, cost and # of changed assignments. The returned
+       * Partial is overwritten by the next pass.
+       */
+      Partial pass(double[][] centroids) {
+         this.centroids = centroids;
+         if (tasks == null) {
+            for (int c = 0; c < partials.length; c++)
+               fuse(c);
+         }
+         else {
+            for (RecursiveAction task : tasks)
+               task.reinitialize();
+            ForkJoinTask.invokeAll(tasks);
+         }
 
-            }
+         Partial total = partials[0];
+         for (int c = 1; c < partials.length; c++)
+            total.add(partials[c]);
+         return total;
+      }
 
-            // choose the next centroid
-            double rand = gen.nextDouble();
-            for (int j = m - 1; j > 0; j--) {
-               // TODO: review and try to optimize
-               // starts at the largest bin. EDIT: not actually the largest
-               if (rand > weightedDistribution[j - 1] / weightedDistribution[m - 1]) { 
-                  choose = j; // one bigger than the one above
-                  break;
-               }
-               else // Because of invalid dimension errors, we can't make the forloop go to j2 > -1 when we have (j2-1) in the loop.
-                  choose = 0;
+      /**
+       * Assignment, cluster sums and cost of the points of chunk c, in one go.
+       */
+      private void fuse(int c) {
+         Partial partial = partials[c];
+         partial.clear();
+         int from = partials.length == 1 ? 0 : c * chunkSize;
+         int to = partials.length == 1 ? m : Math.min(m, from + chunkSize);
+         points.prefetch(to, Math.min(m, to + chunkSize));
+
+         for (int i = from; i < to; i++) {
+            int nearest = points.nearest(i, centroids, L1norm);
+            if (assignment[i] != nearest) {
+               assignment[i] = nearest;
+               partial.changed++;
             }
-         }  
-
-         // store the chosen centroid
-         for (int i = 0; i < n; i++)
-            centroids[c][i] = points[choose][i];
-      }   
+            double w = weight(i);
+            partial.clustSize[nearest] += w;
+            points.addTo(i, w, partial.sums[nearest]);
+            partial.cost[nearest] += w * distance(i, centroids[nearest]);
+         }
+      }
    }
 
-
-   /***********************************************************************
-    * Cutoff to stop clustering
-    **********************************************************************/    
+   /**
+    * A scratch double[length] from the shared buffers, or a new one. Its
+    * contents are undefined.
+    */
+   private double[] takeDoubles(int length) {
+      return buffers == null ? new double[length] : buffers.doubles(length);
+   }
 
    /**
-    * Calculates whether to stop the run
-    * @param prevWCSS error from previous step in the run
-    * @return
+    * A scratch int[length]; see takeDoubles().
     */
-   private boolean stop(double prevWCSS) {
-      if (useEpsilon)
-         return epsilonTest(prevWCSS);
-      else
-         return prevWCSS == WCSS; // TODO: make comment (more exact, but could be much slower)
-      // could this take infinite amount of time? double compare...
-      // I think not because WCSS is calc in same way as prevWCSS (if data structs don't change)
+   private int[] takeInts(int length) {
+      return buffers == null ? new int[length] : buffers.ints(length);
    }
 
    /**
-    * Signals to stop running KMeans when the marginal improvement in WCSS
-    * from the last step is small.
-    * @param prevWCSS error from previous step in the run
-    * @return
+    * Hands a scratch array no longer used to other builds, if buffers are shared.
     */
-   private boolean epsilonTest(double prevWCSS) {
-      return epsilon > 1 - (WCSS / prevWCSS);
+   private void give(double[] array) {
+      if (buffers != null)
+         buffers.give(array);
+   }
+
+   private void give(int[] array) {
+      if (buffers != null)
+         buffers.give(array);
    }
 
-   /***********************************************************************
-    * Utility functions
-    **********************************************************************/
    /**
-    * Calculates distance between two n-dimensional points.
-    * @param x
-    * @param y
-    * @return
+    * A workspace given back by a finished run, or a new one.
     */
-   private double distance(double[] x, double[] y) {
-      return L1norm ? Distance.L1(x, y) : Distance.L2(x, y);
+   private Workspace takeWorkspace() {
+      Workspace work = workspaces.poll();
+      if (work == null)
+         work = new Workspace();
+      if (initialAssignment != null)
+         System.arraycopy(initialAssignment, 0, work.assignment, 0, m);
+      else
+         Arrays.fill(work.assignment, -1);   // every point counts as changed in the first pass
+      return work;
    }
-   
-   private static class Distance {
+
+
+   /**
+    * A single clustering run (one restart). Each run owns its centroids,
+    * assignment and random number generator, and only reads the shared data 
+    * points, so several runs can execute at the same time.
+    */
+   private class Clustering {
+      private final Random gen;     // source of randomness for this run only
+      private final KMeansStats.Restart stats;   // this run's timers and counters
+
+      private double[][] centroids; // see outer class
+      private int[] assignment;     // see outer class
+      private double WCSS;          // see outer class
+      private double[][] assigned;  // KD_TREE only: centroids of the last assignment step
+      private Workspace work;       // LLOYD only: buffers reused across iterations
+      private int changed = -1;     // LLOYD only: # of points reassigned by the last pass
+
+      Clustering(int restart, Random gen) {
+         this.gen = gen;
+         this.stats = KMeans.this.stats.getRestart(restart);
+      }
 
       /**
-       * L1 norm: distance(X,Y) = sum_i=1:n[|x_i - y_i|]
-       * <P> Minkowski distance of order 1.
-       * @param x
-       * @param y
-       * @return
+       * Perform KMeans clustering algorithm once.
        */
-      public static double L1(double[] x, double[] y) {
-         if (x.length != y.length) throw new IllegalArgumentException("dimension error");
-         double dist = 0;
-         for (int i = 0; i < x.length; i++) 
-            dist += Math.abs(x[i] - y[i]);
-         return dist;
+      void cluster() {
+         long start = System.nanoTime();
+         if (batchSize > 0) {
+            miniBatchCluster();
+            stats.nanos = System.nanoTime() - start;
+            return;
+         }
+
+         // continue to re-cluster until marginal gains are small enough
+         chooseInitialCentroids();
+         stats.seedingNanos = System.nanoTime() - start;
+         WCSS = Double.POSITIVE_INFINITY; 
+
+         // out of time after seeding: drop this run (better() never picks it)
+         // unless it is the first one, which must produce a result
+         if (stats.getIndex() > 0 && expired()) {
+            stats.nanos = System.nanoTime() - start;
+            return;
+         }
+         double prevWCSS;
+         Bounds bounds = null;
+         if (engine == Engine.HAMERLY)
+            bounds = new HamerlyBounds();
+         else if (engine == Engine.ELKAN)
+            bounds = new ElkanBounds();
+         else if (engine == Engine.KD_TREE)
+            assigned = new double[k][n];
+
+         do {  
+            prevWCSS = WCSS;    // check if cost function meets stopping criteria
+            long reassigned;
+            
+            if (engine == Engine.KD_TREE) {
+               filterStep();    // assign, update and WCSS from the tree's node sums
+               reassigned = -1;
+            }
+            else if (engine == Engine.GEMM) {
+               int[] previous = assignment;
+               gemmStep();      // blocked assignment, update and WCSS from the cached norms
+               reassigned = count(previous, assignment);
+               if (previous != null)
+                  give(previous);
+            }
+            else if (engine == Engine.LLOYD) {
+               fusedStep();     // assignment, update and WCSS in one pass over the points
+               reassigned = changed;
+            }
+            else {
+               // assign points to the closest centroids, skipping those the bounds rule out
+               long time = System.nanoTime();
+               if (assignment == null)
+                  assignment = takeInts(m);
+               long[] counts = bounds.assign(centroids, assignment);
+               stats.distances += counts[0];
+               reassigned = counts[1];
+               stats.assignmentNanos += System.nanoTime() - time;
+
+               updateStep();    // update centroids
+
+               calcWCSS();
+            }
+
+            stats.step(WCSS, reassigned);
+            if (listener != null)
+               listener.iterationDone(stats.getIndex(), stats.getSteps(), WCSS, reassigned, stats);
+         } while (!stop(prevWCSS));
+         if (bounds != null)
+            bounds.release();
+
+         // the tree only kept cluster sums: write out the last assignment and
+         // replace the WCSS derived from them by the exact one
+         if (engine == Engine.KD_TREE) {
+            long time = System.nanoTime();
+            assignment = takeInts(m);
+            stats.distances += tree.filter(assigned, assignment, chunkSize).distances;
+            stats.assignmentNanos += System.nanoTime() - time;
+            calcWCSS();
+         }
+
+         // the WCSS of the expansion can cancel: replace it by the exact one
+         if (engine == Engine.GEMM)
+            calcWCSS();
+
+         // the fused pass derived the WCSS from the centroids before their last
+         // update: measure the final ones exactly, as the other engines do
+         if (engine == Engine.LLOYD)
+            calcWCSS();
+
+         stats.nanos = System.nanoTime() - start;
       }
-      
+
+      /**
+       * Coreset mode: switches KMeans back to the full data and replaces the
+       * run's assignment and WCSS on the coreset by those on all points.
+       */
+      void assignFullData() {
+         double estimate = WCSS;
+         release();
+
+         points = fullPoints;
+         weights = fullWeights;
+         m = points.size();
+         cumulativeWeights = null;
+         tree = null;
+         gemm = null;
+         fullPoints = null;
+         fullWeights = null;
+
+         if (assignmentFile != null && duplicates == null)
+            assignToFile();
+         else {
+            assignmentStep();
+            calcWCSS();
+         }
+         coresetError = Math.abs(estimate - WCSS) / WCSS;
+      }
+
       /**
-       * L2 norm: distance(X,Y) = sqrt(sum_i=1:n[(x_i-y_i)^2])
-       * <P> Euclidean distance, or Minkowski distance of order 2.
-       * @param x
-       * @param y
+       * Assignment step and WCSS in one pass, writing the assignment straight
+       * to 'assignmentFile' instead of to an int[m].
+       */
+      private void assignToFile() {
+         long time = System.nanoTime();
+         assignment = null;
+         List<Double> partials = forEachChunk(new Chunk<Double>() {
+            public Double apply(int from, int to) {
+               double WCSS = 0;
+               for (int i = from; i < to; i++) {
+                  int nearest = points.nearest(i, centroids, L1norm);
+                  assignmentFile.set(i, nearest);
+                  WCSS += weight(i) * distance(i, centroids[nearest]);
+               }
+               return WCSS;
+            }
+         });
+
+         double WCSS = 0;
+         for (double partial : partials)
+            WCSS += partial;
+         this.WCSS = WCSS;
+         stats.distances += (long) m * (k + 1);
+         stats.assignmentNanos += System.nanoTime() - time;
+      }
+
+      /**
+       * Gives the workspace, or else the assignment, back for other runs. The
+       * run's assignment is invalid afterwards.
+       */
+      void release() {
+         if (work != null && workspaces != null)
+            workspaces.offer(work);
+         else if (work == null && assignment != null)
+            give(assignment);
+         work = null;
+      }
+
+
+      /**
+       * Mini-batch variant of cluster(): only samples of 'batchSize' points are
+       * touched until the smoothed WCSS estimate converges.
+       */
+      private void miniBatchCluster() {
+         long time = System.nanoTime();
+         chooseInitialCentroids();
+         stats.seedingNanos = System.nanoTime() - time;
+
+         // the smoothed cost averages over roughly the last m / batchSize batches
+         double smoothing = Math.min(1.0, 2.0 * batchSize / (m + 1));
+         MiniBatch miniBatch = new MiniBatch(centroids, new long[k], L1norm, smoothing, 
+                                             useEpsilon ? epsilon : 0, PATIENCE);
+         double totalWeight = cumulativeWeights == null ? m : cumulativeWeights[m - 1];
+
+         double[][] batch = new double[batchSize][n];
+         for (int step = 0; step < maxSteps && !miniBatch.converged() && (step == 0 || !expired()); step++) {
+            time = System.nanoTime();
+            for (int i = 0; i < batchSize; i++)
+               points.copy(randomPoint(), batch[i]);   // with replacement
+            miniBatch.step(batch, 0, batchSize);
+            stats.assignmentNanos += System.nanoTime() - time;
+            stats.distances += (long) batchSize * (k + 1);
+
+            double estimate = miniBatch.cost() * totalWeight;
+            stats.step(estimate, -1);
+            if (listener != null)
+               listener.iterationDone(stats.getIndex(), stats.getSteps(), estimate, -1, stats);
+         }
+
+         // one full pass for the assignment and the exact WCSS
+         assignmentStep();
+         calcWCSS();
+      }
+
+
+      /** 
+       * Assigns to each data point the nearest centroid.
+       */
+      private void assignmentStep() {
+         long time = System.nanoTime();
+         assignment = takeInts(m);
+
+         if (gemm != null) {
+            final Gemm.Centroids packed = new Gemm.Centroids(centroids);
+            forEachChunk(new Chunk<Void>() {
+               public Void apply(int from, int to) {
+                  gemm.assign(packed, assignment, from, to);
+                  return null;
+               }
+            });
+         }
+         else {
+            // chunks write disjoint ranges of 'assignment'
+            forEachChunk(new Chunk<Void>() {
+               public Void apply(int from, int to) {
+                  for (int i = from; i < to; i++)
+                     assignment[i] = points.nearest(i, centroids, L1norm);
+                  return null;
+               }
+            });
+         }
+         stats.distances += (long) m * k;
+         stats.assignmentNanos += System.nanoTime() - time;
+      }
+
+
+      /** 
+       * Updates the centroids. Returns the merged cluster sums and sizes (and,
+       * for GEMM, the sums of the squared norms of each cluster's points).
+       */
+      private Partial updateStep() {
+         long time = System.nanoTime();
+
+         // sum points assigned to each cluster, one set of sums per chunk
+         List<Partial> partials = forEachChunk(new Chunk<Partial>() {
+            public Partial apply(int from, int to) {
+               Partial partial = new Partial(k, n);
+               for (int i = from; i < to; i++) {
+                  int c = assignment[i];
+                  double w = weight(i);
+                  partial.clustSize[c] += w;
+                  points.addTo(i, w, partial.sums[c]);
+                  if (gemm != null)
+                     partial.sumSq[c] += w * gemm.norm(i);
+               }
+               return partial;
+            }
+         });
+
+         // merge the partial sums once per iteration
+         Partial total = partials.get(0);
+         for (int p = 1; p < partials.size(); p++)
+            total.add(partials.get(p));
+
+         // reuse memory is faster than re-allocation
+         for (int i = 0; i < k; i++)
+            System.arraycopy(total.sums[i], 0, centroids[i], 0, n);
+
+         divide(total.clustSize);
+         stats.updateNanos += System.nanoTime() - time;
+         return total;
+      }
+
+      /**
+       * Assignment step, update step and WCSS of the GEMM engine. The WCSS
+       * comes from the cluster sums instead of another pass over the points.
+       */
+      private void gemmStep() {
+         assignmentStep();
+         Partial total = updateStep();
+
+         // sum over clusters of sum_x |x - c|^2 = sumSq - count |c|^2, as c is
+         // the mean (empty clusters have no points and contribute nothing)
+         long time = System.nanoTime();
+         double WCSS = 0;
+         for (int i = 0; i < k; i++) {
+            double norm = 0;
+            for (int j = 0; j < n; j++)
+               norm += centroids[i][j] * centroids[i][j];
+            WCSS += Math.max(0, total.sumSq[i] - total.clustSize[i] * norm);
+         }
+         this.WCSS = WCSS;
+         stats.WCSSNanos += System.nanoTime() - time;
+      }
+
+      /**
+       * Assignment step, update step and WCSS of the LLOYD engine in a single
+       * pass over the points, using the run's preallocated workspace.
+       */
+      private void fusedStep() {
+         long time = System.nanoTime();
+         if (work == null) {
+            work = takeWorkspace();
+            assignment = work.assignment;
+         }
+
+         Partial total = work.pass(centroids);
+
+         // the pass measured each cluster against its old centroid c. Under
+         // squared L2, moving c to the cluster's mean u lowers that by (total
+         // weight) * |u - c|^2, which gives the same WCSS as calcWCSS() after
+         // the update. Under L1 there is no such identity, so the WCSS is the
+         // one of the old centroids: stop() and the listener see each
+         // iteration's WCSS one update late (the final one is made exact
+         // after the loop)
+         double WCSS = 0;
+         for (int i = 0; i < k; i++) {
+            if (total.clustSize[i] == 0)
+               continue;
+            double shift = 0;
+            for (int j = 0; j < n; j++) {
+               double diff = total.sums[i][j] / total.clustSize[i] - centroids[i][j];
+               shift += diff * diff;
+            }
+            WCSS += L1norm ? total.cost[i] : Math.max(0, total.cost[i] - total.clustSize[i] * shift);
+         }
+
+         for (int i = 0; i < k; i++)
+            System.arraycopy(total.sums[i], 0, centroids[i], 0, n);
+         divide(total.clustSize);
+
+         this.WCSS = WCSS;
+         changed = total.changed;
+         stats.distances += (long) m * (k + 1);
+         stats.assignmentNanos += System.nanoTime() - time;
+      }
+
+      /**
+       * Turns the cluster sums stored in 'centroids' into averages.
+       */
+      private void divide(double[] clustSize) {
+         // divide to get averages -> centroids
+         int empty = 0;
+         for (int i = 0; i < k; i++) {
+            if (clustSize[i] == 0)
+               empty++;
+
+            else
+               for (int j = 0; j < n; j++)
+                  centroids[i][j] /= clustSize[i];
+         }
+
+         // gracefully handle empty clusters by assigning to that centroid an unused data point.
+         // The point is copied: centroids are modified in place, the shared data must not be.
+         stats.emptyClusters += empty;
+         if (empty != 0) {
+            int[] used = new int[empty];
+            int numUsed = 0;
+            for (int i = 0; i < k; i++)
+               if (clustSize[i] == 0)
+                  while (true) {
+                     int rand = gen.nextInt(m);
+                     if (!contains(used, numUsed, rand)) {
+                        used[numUsed++] = rand;
+                        points.copy(rand, centroids[i]);
+                        break;
+                     }
+                  }
+         }
+      }
+
+      /**
+       * Assignment step, update step and WCSS in a single walk of the k-d tree.
+       * Nodes that end up with a single candidate centroid contribute their 
+       * precomputed sums, so most points are never visited.
+       */
+      private void filterStep() {
+         long time = System.nanoTime();
+         for (int i = 0; i < k; i++)
+            System.arraycopy(centroids[i], 0, assigned[i], 0, n);
+
+         KDTree.Sums sums = tree.filter(assigned, null, chunkSize);
+         stats.distances += sums.distances;
+         for (int i = 0; i < k; i++)
+            System.arraycopy(sums.sums[i], 0, centroids[i], 0, n);
+         divide(sums.weights);
+
+         // sum over clusters of sum_x |x - c|^2 = sumSq - 2 c.sum + count |c|^2
+         double WCSS = 0;
+         for (int i = 0; i < k; i++) {
+            double dot = 0;
+            double norm = 0;
+            for (int j = 0; j < n; j++) {
+               dot += centroids[i][j] * sums.sums[i][j];
+               norm += centroids[i][j] * centroids[i][j];
+            }
+            WCSS += sums.sumSq[i] - 2 * dot + sums.weights[i] * norm;
+         }
+         this.WCSS = WCSS;
+         stats.assignmentNanos += System.nanoTime() - time;
+      }
+
+
+      /********************************************************************
+       * Choose initial centroids
+       *******************************************************************/
+      /**
+       * Uses plusplus (KMeans++), one of its scalable or MCMC approximations or a
+       * basic randoms sample to choose initial centroids
+       */
+      private void chooseInitialCentroids() {
+         if (initialCentroids != null) {
+            centroids = new double[k][];
+            for (int i = 0; i < k; i++)
+               centroids[i] = initialCentroids[i].clone();   // updated in place
+         }
+         else if (seeding == Seeding.PLUSPLUS)
+            plusplus();
+         else if (seeding == Seeding.SCALABLE)
+            scalableSeeding();
+         else if (seeding == Seeding.MCMC)
+            mcmcSeeding();
+         else
+            basicRandSample();
+      }
+
+      /**
+       * A random point, drawn with probability proportional to its weight.
+       */
+      private int randomPoint() {
+         if (cumulativeWeights == null)
+            return gen.nextInt(m);
+         return search(cumulativeWeights, m, gen.nextDouble() * cumulativeWeights[m - 1]);
+      }
+
+      /** 
+       * Randomly chooses (without replacement) k data points as initial centroids. 
+       * Uses Floyd's algorithm so that the shared data points are never reordered.
+       */
+      private void basicRandSample() {
+         centroids = new double[k][n];
+         HashSet<Integer> chosen = new HashSet<Integer>(2 * k);
+
+         int c = 0;
+         for (int i = m - k; i < m; i++) {
+            int rand = gen.nextInt(i + 1);
+            if (!chosen.add(rand)) {      // already taken -> i itself is new
+               rand = i;
+               chosen.add(rand);
+            }
+            points.copy(rand, centroids[c]);   // store chosen centroid
+            c++;
+         }
+      }
+
+      /** 
+       * Randomly chooses (without replacement) k data points as initial centroids using a
+       * weighted probability distribution (proportional to D(x)^2 where D(x) is the 
+       * distance from a data point to the nearest, already chosen centroid). 
+       */
+      // TODO: see if some of this code is extraneous (can be deleted)
+      private void plusplus() {
+         centroids = new double[k][n];       
+         double[] distToClosestCentroid = takeDoubles(m);
+         double[] weightedDistribution  = takeDoubles(m);  // cumulative sum of squared distances
+
+         int choose = 0;
+
+         for (int c = 0; c < k; c++) {
+
+            // first centroid: choose any data point
+            if (c == 0)
+               choose = randomPoint();
+
+            // after first centroid, use a weighted distribution
+            else {
+
+               // check if the most recently added centroid is closer to any of the points than previously added ones
+               for (int p = 0; p < m; p++) {
+                  // gives chosen points 0 probability of being chosen again -> sampling without replacement
+                  double tempDistance = points.L2(p, centroids[c - 1]); // need L2 norm here, not L1
+
+                  // base case: if we have only chosen one centroid so far, nothing to compare to
+                  if (c == 1)
+                     distToClosestCentroid[p] = tempDistance;
+
+                  else { // c != 1 
+                     if (tempDistance < distToClosestCentroid[p])
+                        distToClosestCentroid[p] = tempDistance;
+                  }
+
+                  // no need to square because the distance is the square of the euclidean dist
+                  if (p == 0)
+                     weightedDistribution[0] = weight(0) * distToClosestCentroid[0];
+                  else weightedDistribution[p] = weightedDistribution[p-1] + weight(p) * distToClosestCentroid[p];
+
+               }
+
+               // choose the next centroid: binary search for the bin of a uniform draw
+               choose = search(weightedDistribution, m, gen.nextDouble() * weightedDistribution[m - 1]);
+            }  
+
+            // store the chosen centroid
+            points.copy(choose, centroids[c]);
+         }   
+         give(distToClosestCentroid);
+         give(weightedDistribution);
+      }
+
+      /**
+       * Assumption-free K-MC^2 (Bachem et al. 2016). Approximates the D(x)^2 
+       * sampling of plusplus() with a Markov chain of 'chainLength' steps per 
+       * centroid. Only the proposal distribution needs a pass over the points, 
+       * once: afterwards every centroid costs O(chainLength * k) distances, 
+       * independent of m.
+       */
+      private void mcmcSeeding() {
+         centroids = new double[k][n];
+         int first = randomPoint();
+         points.copy(first, centroids[0]);
+
+         // proposal: q(x) = 1/2 w(x) D(x, c_1)^2 / sum + 1/2 w(x) / sum of weights,
+         // kept as a cumulative sum (w = 1 without weights)
+         double[] proposal = new double[m];
+         double total = 0;
+         for (int p = 0; p < m; p++) {
+            proposal[p] = weight(p) * points.L2(p, centroids[0]);
+            total += proposal[p];
+         }
+         double totalWeight = cumulativeWeights == null ? m : cumulativeWeights[m - 1];
+         double cumulative = 0;
+         for (int p = 0; p < m; p++) {
+            double q = total > 0 ? 0.5 * proposal[p] / total + 0.5 * weight(p) / totalWeight 
+                                 : weight(p) / totalWeight;
+            cumulative += q;
+            proposal[p] = cumulative;
+         }
+
+         for (int c = 1; c < k; c++) {
+            int x = search(proposal, m, gen.nextDouble() * cumulative);
+            double dx = weight(x) * distToChosen(x, c);
+            double qx = probability(proposal, x);
+
+            for (int step = 1; step < chainLength; step++) {
+               int y = search(proposal, m, gen.nextDouble() * cumulative);
+               double dy = weight(y) * distToChosen(y, c);
+               double qy = probability(proposal, y);
+
+               // Metropolis-Hastings: accept with probability min(1, (dy / qy) / (dx / qx))
+               if (dx == 0 || dy * qx > gen.nextDouble() * dx * qy) {
+                  x = y;
+                  dx = dy;
+                  qx = qy;
+               }
+            }
+            points.copy(x, centroids[c]);
+         }
+      }
+
+      /**
+       * Squared L2 distance from point x to the nearest of the first c centroids.
+       */
+      private double distToChosen(int x, int c) {
+         double min = Double.POSITIVE_INFINITY;
+         for (int j = 0; j < c; j++)
+            min = Math.min(min, points.L2(x, centroids[j]));
+         return min;
+      }
+
+      /**
+       * Scalable KMeans++ ("k-means||", Bahmani et al. 2012). Instead of k 
+       * sequential passes, about ln(m) rounds each sample every point 
+       * independently with probability proportional to D(x)^2, oversampling by
+       * 2k, so every round is a single data-parallel pass. The candidates are
+       * then weighted by the # of points closest to them and reclustered into
+       * k centroids with weighted KMeans++.
+       */
+      private void scalableSeeding() {
+         final double[] distToClosest = new double[m];   // squared L2 distance, as in plusplus()
+         final int[] closest = new int[m];               // index of the closest candidate
+         final List<double[]> candidates = new ArrayList<double[]>();
+
+         candidates.add(points.row(randomPoint()));
+         double cost = updateClosest(candidates, 0, distToClosest, closest);
+
+         int rounds = (int) Math.ceil(Math.log(m));
+         final double oversampling = 2.0 * k;
+         for (int r = 0; r < rounds && cost > 0; r++) {
+            // sample each point independently; chunks get their own generator,
+            // seeded from the run's, so the sample does not depend on scheduling
+            final double roundCost = cost;
+            final long roundSeed = gen.nextLong();
+            List<List<Integer>> sampled = forEachChunk(new Chunk<List<Integer>>() {
+               public List<Integer> apply(int from, int to) {
+                  Random chunkGen = new Random(roundSeed + from);
+                  List<Integer> chosen = new ArrayList<Integer>();
+                  for (int i = from; i < to; i++)
+                     if (chunkGen.nextDouble() * roundCost < oversampling * weight(i) * distToClosest[i])
+                        chosen.add(i);
+                  return chosen;
+               }
+            });
+
+            int first = candidates.size();
+            for (List<Integer> chosen : sampled)
+               for (int i : chosen)
+                  candidates.add(points.row(i));
+            cost = updateClosest(candidates, first, distToClosest, closest);
+         }
+
+         // weight every candidate by the # (total weight) of points closest to it
+         final int numCandidates = candidates.size();
+         List<double[]> partials = forEachChunk(new Chunk<double[]>() {
+            public double[] apply(int from, int to) {
+               double[] weights = new double[numCandidates];
+               for (int i = from; i < to; i++)
+                  weights[closest[i]] += weight(i);
+               return weights;
+            }
+         });
+         double[] weights = new double[numCandidates];
+         for (double[] partial : partials)
+            for (int c = 0; c < numCandidates; c++)
+               weights[c] += partial[c];
+
+         centroids = weightedPlusPlus(candidates, weights);
+      }
+
+      /**
+       * Lowers distToClosest and closest for the candidates [first, size) and
+       * returns the new total cost, i.e. the weighted sum of distToClosest.
+       */
+      private double updateClosest(final List<double[]> candidates, final int first, 
+            final double[] distToClosest, final int[] closest) {
+         List<Double> partials = forEachChunk(new Chunk<Double>() {
+            public Double apply(int from, int to) {
+               double cost = 0;
+               for (int i = from; i < to; i++) {
+                  if (first == 0)
+                     distToClosest[i] = Double.POSITIVE_INFINITY;
+                  for (int c = first; c < candidates.size(); c++) {
+                     double tempDistance = points.L2(i, candidates.get(c));
+                     if (tempDistance < distToClosest[i]) {
+                        distToClosest[i] = tempDistance;
+                        closest[i] = c;
+                     }
+                  }
+                  cost += weight(i) * distToClosest[i];
+               }
+               return cost;
+            }
+         });
+
+         double cost = 0;
+         for (double partial : partials)
+            cost += partial;
+         return cost;
+      }
+
+      /**
+       * KMeans++ over a small set of weighted candidates: the probability of 
+       * choosing a candidate is proportional to its weight times D(x)^2. If
+       * there are not enough distinct candidates, the remaining centroids are
+       * random data points.
+       */
+      private double[][] weightedPlusPlus(List<double[]> candidates, double[] weights) {
+         double[][] chosen = new double[k][];
+         int size = candidates.size();
+         double[] distToClosest = new double[size];
+         Arrays.fill(distToClosest, Double.POSITIVE_INFINITY);
+
+         int choose = sample(weights, null, size);
+         for (int c = 0; c < k; c++) {
+            if (c > 0) {
+               for (int i = 0; i < size; i++)
+                  distToClosest[i] = Math.min(distToClosest[i], 
+                                              Distance.L2(candidates.get(i), chosen[c - 1]));
+               choose = sample(weights, distToClosest, size);
+            }
+
+            if (choose < 0)   // every candidate coincides with a chosen centroid
+               chosen[c] = points.row(gen.nextInt(m));
+            else
+               chosen[c] = candidates.get(choose).clone();
+         }
+         return chosen;
+      }
+
+      /**
+       * Samples an index i in [0, size) with probability proportional to
+       * weights[i] * dist[i] (or weights[i] if dist is null). Returns -1 if
+       * all of them are 0.
+       */
+      private int sample(double[] weights, double[] dist, int size) {
+         double total = 0;
+         for (int i = 0; i < size; i++)
+            total += dist == null ? weights[i] : weights[i] * dist[i];
+         if (total <= 0)
+            return -1;
+
+         double rand = gen.nextDouble() * total;
+         int last = -1;
+         for (int i = 0; i < size; i++) {
+            double w = dist == null ? weights[i] : weights[i] * dist[i];
+            if (w > 0) {
+               last = i;
+               rand -= w;
+               if (rand < 0)
+                  return i;
+            }
+         }
+         return last;   // rounding
+      }
+
+
+      /********************************************************************
+       * Cutoff to stop clustering
+       *******************************************************************/    
+
+      /**
+       * Calculates whether to stop the run
+       * @param prevWCSS error from previous step in the run
+       * @return
+       */
+      private boolean stop(double prevWCSS) {
+         // the assignment, and so the centroids, are final; unless this was the
+         // first pass from given centroids that are not the means of the prior
+         // assignment, since the pass has just moved them to those means
+         if (changed == 0 && (stats.getSteps() > 1 || meansOfAssignment))
+            return true;
+         if (useEpsilon ? epsilonTest(prevWCSS) : prevWCSS == WCSS) // TODO: make comment (more exact, but could be much slower)
+            return true;
+         // could this take infinite amount of time? double compare...
+         // I think not because WCSS is calc in same way as prevWCSS (if data structs don't change)
+         return expired();   // out of time: keep the centroids so far
+      }
+
+      /**
+       * Signals to stop running KMeans when the marginal improvement in WCSS
+       * from the last step is small.
+       * @param prevWCSS error from previous step in the run
        * @return
        */
-      public static double L2(double[] x, double[] y) {
-         if (x.length != y.length) throw new IllegalArgumentException("dimension error");
-         double dist = 0;
-         for (int i = 0; i < x.length; i++)
-            dist += Math.abs((x[i] - y[i]) * (x[i] - y[i]));
-         return dist;
+      private boolean epsilonTest(double prevWCSS) {
+         return epsilon > 1 - (WCSS / prevWCSS);
+      }
+
+      /** 
+       * Calculates WCSS (Within-Cluster-Sum-of-Squares), a measure of the clustering's error.
+       */
+      private void calcWCSS() {
+         long time = System.nanoTime();
+         List<Double> partials = forEachChunk(new Chunk<Double>() {
+            public Double apply(int from, int to) {
+               double WCSS = 0;
+               int assignedClust;
+
+               for (int i = from; i < to; i++) {
+                  assignedClust = assignment[i];
+                  WCSS += weight(i) * distance(i, centroids[assignedClust]);
+               }
+               return WCSS;
+            }
+         });
+
+         double WCSS = 0;
+         for (double partial : partials)
+            WCSS += partial;
+
+         this.WCSS = WCSS;
+         stats.distances += m;
+         stats.WCSSNanos += System.nanoTime() - time;
       }
    }
-   
-   /** 
-    * Calculates WCSS (Within-Cluster-Sum-of-Squares), a measure of the clustering's error.
+
+   /***********************************************************************
+    * Single steps, for benchmarks
+    **********************************************************************/
+
+   /**
+    * One run, driven a step at a time (see Builder.phases()). seed() comes
+    * first; assign() must precede update() and WCSS(). update() and WCSS()
+    * leave the assignment alone, so they can be repeated on the same one.
+    */
+   class Phases {
+      private final Clustering run;
+
+      private Phases() {
+         workspaces = new ConcurrentLinkedQueue<Workspace>();
+         run = new Clustering(0, hasSeed ? new Random(seed) : new Random());
+      }
+
+      /**
+       * Chooses the initial centroids, with the Builder's seeding.
+       */
+      void seed() {
+         run.chooseInitialCentroids();
+      }
+
+      /**
+       * Assignment step (blocked products for Engine.GEMM).
+       */
+      void assign() {
+         run.assignmentStep();
+      }
+
+      /**
+       * Update step: moves the centroids to the means of the assignment.
+       */
+      void update() {
+         run.updateStep();
+      }
+
+      /**
+       * WCSS of the assignment, to the current centroids.
+       */
+      double WCSS() {
+         run.calcWCSS();
+         return run.WCSS;
+      }
+
+      /**
+       * One LLOYD iteration: assignment, update and WCSS in a single pass.
+       */
+      double iterate() {
+         run.fusedStep();
+         return run.WCSS;
+      }
+
+      double[][] getCentroids() {
+         return run.centroids;
+      }
+   }
+
+
+   /***********************************************************************
+    * Accelerated assignment: Hamerly and Elkan
+    **********************************************************************/
+
+   /**
+    * Assignment step that keeps, for every point, an upper bound on the distance
+    * to its own centroid and lower bounds on the distances to the others. After
+    * the update step the bounds are loosened by how far each centroid moved, and
+    * the triangle inequality then rules out most distance calculations. The 
+    * assignment is the same as the one computed by assignmentStep() (up to ties).
+    * 
+    * Bounds are kept in the metric itself (L1 or Euclidean), not in the squared
+    * Euclidean distance that distance() returns, because only a metric obeys
+    * the triangle inequality.
+    */
+   private abstract class Bounds {
+      protected final double[] upper = takeDoubles(m); // >= distance to own centroid
+      protected final double[][] halfDist = new double[k][k]; // half distance between centroids
+      protected final double[] s = new double[k];     // half distance to the nearest other centroid
+      protected final double[] moved = new double[k]; // distance centroid moved since last step
+      protected int farthest;                         // centroid that moved the most
+      protected double secondFarthest;                // largest movement of any other centroid
+      private double[][] previous;                    // centroids seen by the last step
+
+      /**
+       * Computes the assignment for 'centroids' into 'assignment'. The first call
+       * computes every distance; later calls expect the same assignment array.
+       * Returns the # of point-to-centroid distances computed and the # of
+       * points that changed cluster.
+       */
+      long[] assign(final double[][] centroids, final int[] assignment) {
+         List<long[]> partials;
+         if (previous == null) {
+            previous = new double[k][n];
+            partials = forEachChunk(new Chunk<long[]>() {
+               public long[] apply(int from, int to) {
+                  for (int i = from; i < to; i++)
+                     initialize(i, centroids, assignment);
+                  return new long[] { (long) (to - from) * k, to - from };
+               }
+            });
+         }
+         
+         else {
+            farthest = 0;
+            for (int j = 0; j < k; j++) {
+               moved[j] = metric(previous[j], centroids[j]);
+               if (moved[j] > moved[farthest])
+                  farthest = j;
+            }
+            secondFarthest = 0;
+            for (int j = 0; j < k; j++)
+               if (j != farthest && moved[j] > secondFarthest)
+                  secondFarthest = moved[j];
+
+            for (int j = 0; j < k; j++) {
+               s[j] = Double.POSITIVE_INFINITY;
+               for (int jj = 0; jj < j; jj++) {
+                  double half = 0.5 * metric(centroids[j], centroids[jj]);
+                  halfDist[j][jj] = half;
+                  halfDist[jj][j] = half;
+                  s[j] = Math.min(s[j], half);
+                  s[jj] = Math.min(s[jj], half);
+               }
+            }
+            
+            partials = forEachChunk(new Chunk<long[]>() {
+               public long[] apply(int from, int to) {
+                  long[] counts = new long[2];
+                  for (int i = from; i < to; i++) {
+                     int a = assignment[i];
+                     loosen(i, a);
+                     if (upper[i] > s[a]) {
+                        counts[0] += update(i, centroids, assignment);
+                        if (assignment[i] != a)
+                           counts[1]++;
+                     }
+                  }
+                  return counts;
+               }
+            });
+         }
+
+         for (int j = 0; j < k; j++)
+            System.arraycopy(centroids[j], 0, previous[j], 0, n);
+
+         long[] total = new long[2];
+         for (long[] counts : partials) {
+            total[0] += counts[0];
+            total[1] += counts[1];
+         }
+         return total;
+      }
+
+      /**
+       * Gives the per-point bounds to other builds once the run is done.
+       */
+      void release() {
+         give(upper);
+      }
+
+      /**
+       * Computes every distance for point i and sets its assignment and bounds.
+       */
+      protected abstract void initialize(int i, double[][] centroids, int[] assignment);
+
+      /**
+       * Loosens the bounds of point i, assigned to centroid a, by the centroid
+       * movement since the last step.
+       */
+      protected abstract void loosen(int i, int a);
+
+      /**
+       * Re-checks point i, whose upper bound is too large to skip it outright.
+       * Returns the # of distances computed.
+       */
+      protected abstract int update(int i, double[][] centroids, int[] assignment);
+   }
+
+   /**
+    * Hamerly's algorithm: one lower bound per point, on the distance to the
+    * second-closest centroid. Cheap in memory (2 doubles per point), best for
+    * small k.
+    */
+   private class HamerlyBounds extends Bounds {
+      private final double[] lower = takeDoubles(m);
+
+      @Override
+      void release() {
+         super.release();
+         give(lower);
+      }
+
+      @Override
+      protected void initialize(int i, double[][] centroids, int[] assignment) {
+         scan(i, centroids, assignment);
+      }
+
+      @Override
+      protected void loosen(int i, int a) {
+         upper[i] += moved[a];
+         lower[i] -= a == farthest ? secondFarthest : moved[farthest];
+      }
+
+      @Override
+      protected int update(int i, double[][] centroids, int[] assignment) {
+         int a = assignment[i];
+         double z = Math.max(lower[i], s[a]);
+         if (upper[i] <= z)
+            return 0;
+
+         upper[i] = metric(i, centroids[a]);
+         if (upper[i] <= z)
+            return 1;
+
+         scan(i, centroids, assignment);
+         return 1 + k;
+      }
+
+      /**
+       * Full scan over all centroids, keeping the closest and second closest.
+       */
+      private void scan(int i, double[][] centroids, int[] assignment) {
+         double best = Double.POSITIVE_INFINITY;
+         double second = Double.POSITIVE_INFINITY;
+         int bestLocation = 0;
+         for (int j = 0; j < k; j++) {
+            double d = metric(i, centroids[j]);
+            if (d < best) {
+               second = best;
+               best = d;
+               bestLocation = j;
+            }
+            else if (d < second)
+               second = d;
+         }
+         assignment[i] = bestLocation;
+         upper[i] = best;
+         lower[i] = second;
+      }
+   }
+
+   /**
+    * Elkan's algorithm: one lower bound per point and centroid. Needs m * k
+    * doubles, but prunes far better than Hamerly when k is large.
+    */
+   private class ElkanBounds extends Bounds {
+      private final double[] lower = takeDoubles(m * k); // row-major: point i, centroid j
+
+      @Override
+      void release() {
+         super.release();
+         give(lower);
+      }
+
+      @Override
+      protected void initialize(int i, double[][] centroids, int[] assignment) {
+         double best = Double.POSITIVE_INFINITY;
+         int bestLocation = 0;
+         int row = i * k;
+         for (int j = 0; j < k; j++) {
+            double d = metric(i, centroids[j]);
+            lower[row + j] = d;
+            if (d < best) {
+               best = d;
+               bestLocation = j;
+            }
+         }
+         assignment[i] = bestLocation;
+         upper[i] = best;
+      }
+
+      @Override
+      protected void loosen(int i, int a) {
+         upper[i] += moved[a];
+         int row = i * k;
+         for (int j = 0; j < k; j++)
+            lower[row + j] = Math.max(0, lower[row + j] - moved[j]);
+      }
+
+      @Override
+      protected int update(int i, double[][] centroids, int[] assignment) {
+         int a = assignment[i];
+         int row = i * k;
+         boolean stale = true;   // upper[i] is a bound, not the exact distance
+         int computed = 0;
+
+         for (int j = 0; j < k; j++) {
+            if (j == a || upper[i] <= lower[row + j] || upper[i] <= halfDist[a][j])
+               continue;
+
+            if (stale) {
+               upper[i] = metric(i, centroids[a]);
+               lower[row + a] = upper[i];
+               stale = false;
+               computed++;
+               if (upper[i] <= lower[row + j] || upper[i] <= halfDist[a][j])
+                  continue;
+            }
+
+            double d = metric(i, centroids[j]);
+            lower[row + j] = d;
+            computed++;
+            if (d < upper[i] || (d == upper[i] && j < a)) {  // same tie-break as assignmentStep()
+               a = j;
+               upper[i] = d;
+            }
+         }
+         assignment[i] = a;
+         return computed;
+      }
+   }
+
+
+   /***********************************************************************
+    * Utility functions
+    **********************************************************************/
+   /**
+    * Binary search in a cumulative distribution: the first index i < size with
+    * cumulative[i] > target, or size - 1 if there is none. O(log m) per draw.
+    */
+   private static int search(double[] cumulative, int size, double target) {
+      int lo = 0;
+      int hi = size - 1;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (cumulative[mid] > target)
+            hi = mid;
+         else
+            lo = mid + 1;
+      }
+      return lo;
+   }
+
+   /**
+    * Weighted mean of every cluster of 'assignment'. An empty cluster gets a
+    * random point instead, as in the update step.
+    */
+   private double[][] means(PointStore points, double[] weights, int[] assignment) {
+      double[][] means = new double[k][points.dimension()];
+      double[] clustSize = new double[k];
+      for (int i = 0; i < assignment.length; i++) {
+         double w = weights == null ? 1 : weights[i];
+         points.addTo(i, w, means[assignment[i]]);
+         clustSize[assignment[i]] += w;
+      }
+
+      Random gen = hasSeed ? new Random(seed) : new Random();
+      for (int c = 0; c < k; c++) {
+         if (clustSize[c] == 0)
+            points.copy(gen.nextInt(points.size()), means[c]);
+         else
+            for (int j = 0; j < means[c].length; j++)
+               means[c][j] /= clustSize[c];
+      }
+      return means;
+   }
+
+   /**
+    * True once the time limit is up or the build was cancelled (and then
+    * remembers that the build was cut short). Called by every restart.
+    */
+   private boolean expired() {
+      boolean expired = (cancel != null && cancel.get())
+                        || (timeLimit > 0 && System.nanoTime() - deadline >= 0);
+      if (expired)
+         stoppedEarly = true;
+      return expired;
+   }
+
+   /**
+    * Number of points whose cluster differs between two assignments; all of
+    * them if there was no previous one.
+    */
+   private static long count(int[] previous, int[] current) {
+      if (previous == null)
+         return current.length;
+      long changed = 0;
+      for (int i = 0; i < current.length; i++)
+         if (previous[i] != current[i])
+            changed++;
+      return changed;
+   }
+
+   /**
+    * Weight of point i.
     */
-   private void calcWCSS() {
-      double WCSS = 0;
-      int assignedClust;
+   private double weight(int i) {
+      return weights == null ? 1 : weights[i];
+   }
+
+   /**
+    * True if values[0, size) contains value.
+    */
+   private static boolean contains(int[] values, int size, int value) {
+      for (int i = 0; i < size; i++)
+         if (values[i] == value)
+            return true;
+      return false;
+   }
 
-      for (int i = 0; i < m; i++) {
-         assignedClust = assignment[i];
-         WCSS += distance(points[i], centroids[assignedClust]);
-      }     
+   /**
+    * Probability of index i in a cumulative distribution.
+    */
+   private static double probability(double[] cumulative, int i) {
+      return i == 0 ? cumulative[0] : cumulative[i] - cumulative[i - 1];
+   }
 
-      this.WCSS = WCSS;
+   /**
+    * Calculates distance between two n-dimensional points.
+    * @param x
+    * @param y
+    * @return
+    */
+   private double distance(double[] x, double[] y) {
+      return L1norm ? Distance.L1(x, y) : Distance.L2(x, y);
+   }
+
+   /**
+    * Calculates distance between data point i and an n-dimensional point.
+    */
+   private double distance(int i, double[] y) {
+      return L1norm ? points.L1(i, y) : points.L2(i, y);
+   }
+
+   /**
+    * Like distance(), but always a metric: Euclidean rather than squared
+    * Euclidean distance for the L2 norm. Ranks points the same as distance().
+    */
+   private double metric(double[] x, double[] y) {
+      return L1norm ? Distance.L1(x, y) : Math.sqrt(Distance.L2(x, y));
    }
 
+   /**
+    * metric() between data point i and an n-dimensional point.
+    */
+   private double metric(int i, double[] y) {
+      return L1norm ? points.L1(i, y) : Math.sqrt(points.L2(i, y));
+   }
+   
    /***********************************************************************
     * Accessors
     ***********************************************************************/
+   /**
+    * Cluster of every point; null if it was written to Builder.assignmentFile().
+    */
    public int[] getAssignment() {
       return assignment;
    }
@@ -523,7 +2277,37 @@ public class KMeans {
    public double getWCSS() {
       return WCSS;
    }
+
+   /**
+    * The centroids as an immutable model, to assign new points to them.
+    */
+   public KMeansModel getModel() {
+      return new KMeansModel(centroids, L1norm);
+   }
+
+   /**
+    * Coreset mode: relative difference between the WCSS of the centroids on
+    * the coreset and on all points. NaN if no coreset was used.
+    */
+   public double getCoresetError() {
+      return coresetError;
+   }
    
+   /**
+    * True if the time limit or a cancellation stopped the build before all
+    * restarts had converged: the result is the best one found by then.
+    */
+   public boolean isStoppedEarly() {
+      return stoppedEarly;
+   }
+
+   /**
+    * Phase timers and counters of this build, per restart.
+    */
+   public KMeansStats getStats() {
+      return stats;
+   }
+
    public String getTiming() {
       return "KMeans++ took: " + (double) (end - start) / 1000.0 + " seconds";
    }
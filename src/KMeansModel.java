@@ -0,0 +1,291 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Trained centroids, for assigning new points to them. Immutable
+ * and thread-safe: one model can serve any number of threads.
+ *
+ * ALGORITHM: Orchard's nearest-neighbor search. For every centroid, the
+ * model keeps the other centroids sorted by their distance to it. A search
+ * starts from a first guess g and walks g's list: by the triangle
+ * inequality no centroid c with D(g, c) > 2 D(x, g) can beat g, so the
+ * walk stops there, and it restarts from c whenever c is nearer to x than
+ * g. Centroids are usually compared to x a few dozen times rather than k
+ * times. The first guess is the centroid whose distance to a pivot (the
+ * centroid farthest from their mean) is closest to that of x.
+ *
+ * The lists hold at most NEIGHBORS centroids each; a search that runs off
+ * the end of one falls back to comparing x to every centroid. For few
+ * centroids a plain scan is faster and is used instead. Building the lists
+ * costs k^2 distances, once.
+ *
+ * The model keeps no centroid norms. Expanding distances as
+ * norm(x)^2 - 2 x.c + norm(c)^2 (as the GEMM engine does) rounds
+ * differently, and predict() would then disagree with KMeans on points
+ * nearly equidistant from two centroids. The exact bound they give,
+ * |norm(x) - norm(c)| <= D(x, c), rules out too few centroids beyond a
+ * few dimensions to speed up the scans.
+ *
+ * predict() returns the assignment KMeans' assignment step would: the
+ * nearest centroid, ties going to the lowest index.
+ ************************************************************************/
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class KMeansModel {
+
+   // below this many centroids, scan them all
+   private static final int MIN_INDEXED = 32;
+
+   // length of the neighbor list of every centroid (at most)
+   private static final int NEIGHBORS = 1024;
+
+   // relative slack on the pruning bound, so that rounding never prunes a
+   // centroid that is as near as the best one
+   private static final double SLACK = 1e-9;
+
+   private final double[][] centroids;
+   private final boolean L1norm;
+   private final int k;
+   private final int n;
+
+   // neighbor lists: centroid j's neighbors, nearest first, are
+   // neighbors[j * length, (j + 1) * length), at metric distance neighborDist[...]
+   private final int length;
+   private final int[] neighbors;
+   private final double[] neighborDist;
+
+   // first guess: the centroids sorted by their distance to the pivot
+   private final double[] pivot;
+   private final int[] order;
+   private final double[] radius;
+
+   /**
+    * Copies the centroids. L1norm must be the norm they were trained with.
+    */
+   public KMeansModel(double[][] centroids, boolean L1norm) {
+      if (centroids.length < 1 || centroids[0].length < 1)
+         throw new IllegalArgumentException("Required: at least one centroid and one dimension");
+      k = centroids.length;
+      n = centroids[0].length;
+      this.L1norm = L1norm;
+      this.centroids = new double[k][];
+      for (int j = 0; j < k; j++) {
+         if (centroids[j].length != n)
+            throw new IllegalArgumentException("dimension error");
+         this.centroids[j] = centroids[j].clone();
+      }
+
+      if (k < MIN_INDEXED) {
+         length = 0;
+         neighbors = null;
+         neighborDist = null;
+         pivot = null;
+         order = null;
+         radius = null;
+         return;
+      }
+
+      // neighbor lists
+      length = Math.min(k - 1, NEIGHBORS);
+      neighbors = new int[k * length];
+      neighborDist = new double[k * length];
+      double[] dist = new double[k];
+      for (int j = 0; j < k; j++) {
+         for (int c = 0; c < k; c++)
+            dist[c] = metric(this.centroids[j], this.centroids[c]);
+         int[] sorted = sort(dist);
+         int r = 0;
+         for (int s = 0; s < k && r < length; s++)
+            if (sorted[s] != j) {
+               neighbors[j * length + r] = sorted[s];
+               neighborDist[j * length + r] = dist[sorted[s]];
+               r++;
+            }
+      }
+
+      // pivot: the centroid farthest from the mean of the centroids
+      double[] mean = new double[n];
+      for (double[] c : this.centroids)
+         for (int d = 0; d < n; d++)
+            mean[d] += c[d] / k;
+      int far = 0;
+      for (int j = 0; j < k; j++) {
+         dist[j] = metric(this.centroids[j], mean);
+         if (dist[j] > dist[far])
+            far = j;
+      }
+      pivot = this.centroids[far];
+      for (int j = 0; j < k; j++)
+         dist[j] = metric(this.centroids[j], pivot);
+      order = sort(dist);
+      radius = new double[k];
+      for (int r = 0; r < k; r++)
+         radius[r] = dist[order[r]];
+   }
+
+   /**
+    * Indices of 'values', by increasing value.
+    */
+   private static int[] sort(final double[] values) {
+      Integer[] sorted = new Integer[values.length];
+      for (int i = 0; i < sorted.length; i++)
+         sorted[i] = i;
+      Arrays.sort(sorted, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return Double.compare(values[a], values[b]);
+         }
+      });
+      int[] order = new int[sorted.length];
+      for (int i = 0; i < order.length; i++)
+         order[i] = sorted[i];
+      return order;
+   }
+
+   /***********************************************************************
+    * Prediction
+    **********************************************************************/
+
+   /**
+    * Index of the centroid nearest to x.
+    */
+   public int predict(double[] x) {
+      if (x.length != n)
+         throw new IllegalArgumentException("dimension error");
+      if (neighbors == null)
+         return Distance.nearest(x, centroids, L1norm);
+      return search(x);
+   }
+
+   /**
+    * Index of the nearest centroid of every point.
+    */
+   public int[] predict(double[][] points) {
+      return predict(points, new int[points.length]);
+   }
+
+   /**
+    * Writes the index of the nearest centroid of points[i] to out[i], and
+    * returns out, so that the same buffer can be reused batch after batch.
+    */
+   public int[] predict(double[][] points, int[] out) {
+      if (out.length < points.length)
+         throw new IllegalArgumentException("Required: out.length >= # of points");
+      for (int i = 0; i < points.length; i++)
+         out[i] = predict(points[i]);
+      return out;
+   }
+
+   /**
+    * Writes the index of the nearest centroid of point i of the store to
+    * out[i], and returns out.
+    */
+   public int[] predict(PointStore points, int[] out) {
+      return predict(points, 0, points.size(), out);
+   }
+
+   /**
+    * predict() for the points [from, to) of the store only: out[i] for i in
+    * [from, to) is written, the rest of out is left alone.
+    */
+   public int[] predict(PointStore points, int from, int to, int[] out) {
+      if (points.dimension() != n)
+         throw new IllegalArgumentException("dimension error");
+      if (from < 0 || to > points.size() || from > to || out.length < to)
+         throw new IllegalArgumentException("Required: 0 <= from <= to <= # of points, out.length >= to");
+
+      if (neighbors == null) {
+         for (int i = from; i < to; i++)
+            out[i] = points.nearest(i, centroids, L1norm);
+         return out;
+      }
+      double[] x = new double[n];
+      for (int i = from; i < to; i++) {
+         points.copy(i, x);
+         out[i] = search(x);
+      }
+      return out;
+   }
+
+   /**
+    * Orchard's search. Distances are compared as KMeans compares them (L1,
+    * or squared L2); only the pruning bound is in the metric itself.
+    */
+   private int search(double[] x) {
+      int best = guess(x);
+      double bestDist = distance(x, best);
+
+      walk:
+      while (true) {
+         double bound = 2 * (L1norm ? bestDist : Math.sqrt(bestDist)) * (1 + SLACK);
+         int offset = best * length;
+         for (int r = 0; r < length; r++) {
+            if (neighborDist[offset + r] > bound)
+               return best;      // no centroid further down the list can be nearer
+            int j = neighbors[offset + r];
+            double dist = distance(x, j);
+            if (dist < bestDist || (dist == bestDist && j < best)) {
+               best = j;
+               bestDist = dist;
+               continue walk;    // start over from the new best centroid's list
+            }
+         }
+         // the list ran out before the bound: it may not hold the nearest centroid
+         return length == k - 1 ? best : Distance.nearest(x, centroids, L1norm);
+      }
+   }
+
+   /**
+    * The centroid as far from the pivot as x (or nearly).
+    */
+   private int guess(double[] x) {
+      int r = Arrays.binarySearch(radius, metric(x, pivot));
+      if (r < 0)
+         r = Math.min(-r - 1, k - 1);
+      return order[r];
+   }
+
+   private double distance(double[] x, int j) {
+      return L1norm ? Distance.L1(x, centroids[j]) : Distance.L2(x, centroids[j]);
+   }
+
+   /**
+    * Distance in the metric itself (L1, or Euclidean), which obeys the
+    * triangle inequality.
+    */
+   private double metric(double[] x, double[] y) {
+      return L1norm ? Distance.L1(x, y) : Math.sqrt(Distance.L2(x, y));
+   }
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+
+   /**
+    * A copy of the centroids.
+    */
+   public double[][] getCentroids() {
+      double[][] copy = new double[k][];
+      for (int j = 0; j < k; j++)
+         copy[j] = centroids[j].clone();
+      return copy;
+   }
+
+   /**
+    * Number of centroids.
+    */
+   public int size() {
+      return k;
+   }
+
+   /**
+    * Number of dimensions of every centroid.
+    */
+   public int dimension() {
+      return n;
+   }
+
+   public boolean isL1norm() {
+      return L1norm;
+   }
+}
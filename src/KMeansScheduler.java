@@ -0,0 +1,288 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Runs many small, independent KMeans jobs (e.g. one per image)
+ * on a fixed set of worker threads, rather than building them one at a
+ * time. Every job is a KMeans.Builder, or a Callable that makes one on a
+ * worker, so that copying and checking the points run in parallel too;
+ * submitting returns a Future of the finished KMeans.
+ *
+ *   - scheduling: the workers form a work-stealing ForkJoinPool. A job
+ *     with parallelism > 1 forks its restarts and chunks into the same
+ *     pool, where idle workers steal them, instead of starting a pool of
+ *     its own; with the default parallelism of 1 each job runs on one
+ *     worker, which is best when there are more jobs than workers.
+ *   - backpressure: at most 'capacity' jobs are queued or running at a
+ *     time. submit() waits for one of them to finish; trySubmit() returns
+ *     null instead.
+ *   - buffers: the scratch arrays of one value per point (KMeans++
+ *     distances, HAMERLY and ELKAN bounds, LLOYD assignments of discarded
+ *     restarts) go to a pool shared by the jobs, up to 'bufferBytes', so
+ *     that jobs of the same size stop allocating them.
+ *   - throughput: getJobsPerSecond() counts finished jobs from the first
+ *     submission to the last completion.
+ ************************************************************************/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class KMeansScheduler {
+
+   private final ForkJoinPool pool;       // the workers
+   private final Semaphore slots;         // one permit per job that may be queued or running
+   private final BufferPool buffers;      // scratch arrays shared by the jobs
+   private volatile boolean shutdown;
+
+   // throughput
+   private final AtomicLong submitted = new AtomicLong();
+   private final AtomicLong completed = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final AtomicLong firstSubmit = new AtomicLong();   // System.nanoTime(), 0 until then
+   private volatile long lastDone;
+
+   private KMeansScheduler(Builder builder) {
+      pool = new ForkJoinPool(builder.threads);
+      slots = new Semaphore(builder.capacity > 0 ? builder.capacity : 4 * builder.threads);
+      buffers = new BufferPool(builder.bufferBytes);
+   }
+
+   /**
+    * Builder class for constructing KMeansScheduler objects. For descriptions
+    * of the fields, see outer class.
+    */
+   public static class Builder {
+      // optional (default values given)
+      private int threads      = Runtime.getRuntime().availableProcessors();
+      private int capacity     = 0;   // 0: 4 * threads
+      private long bufferBytes = 256L << 20;
+
+      /**
+       * Sets optional parameter. Default value is the # of cores.
+       */
+      public Builder threads(int threads) {
+         if (threads < 1)
+            throw new IllegalArgumentException("Required: positive # of threads. Ex: 4");
+         this.threads = threads;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 4 * threads. Maximum # of
+       * jobs queued or running; bounds the memory held by submitted jobs.
+       */
+      public Builder capacity(int capacity) {
+         if (capacity < 1)
+            throw new IllegalArgumentException("Required: positive capacity. Ex: 64");
+         this.capacity = capacity;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 268435456 (256 MB). Bytes of
+       * scratch arrays kept between jobs; 0 turns the sharing off.
+       */
+      public Builder bufferBytes(long bufferBytes) {
+         if (bufferBytes < 0)
+            throw new IllegalArgumentException("Required: non-negative # of bytes. Ex: 0");
+         this.bufferBytes = bufferBytes;
+         return this;
+      }
+
+      /**
+       * Build a KMeansScheduler object: starts the workers.
+       */
+      public KMeansScheduler build() {
+         return new KMeansScheduler(this);
+      }
+   }
+
+
+   /***********************************************************************
+    * Submission
+    **********************************************************************/
+
+   /**
+    * Queues a job, waiting while 'capacity' jobs are queued or running. The
+    * builder belongs to the scheduler from now on.
+    */
+   public Future<KMeans> submit(KMeans.Builder job) throws InterruptedException {
+      return submit(constant(job));
+   }
+
+   /**
+    * Queues a job whose builder is made on a worker, waiting while
+    * 'capacity' jobs are queued or running.
+    */
+   public Future<KMeans> submit(Callable<KMeans.Builder> job) throws InterruptedException {
+      checkRunning();
+      slots.acquire();
+      return start(job);
+   }
+
+   /**
+    * Queues a job if fewer than 'capacity' jobs are queued or running;
+    * returns null otherwise.
+    */
+   public Future<KMeans> trySubmit(KMeans.Builder job) {
+      return trySubmit(constant(job));
+   }
+
+   /**
+    * Same as trySubmit(KMeans.Builder), the builder made on a worker.
+    */
+   public Future<KMeans> trySubmit(Callable<KMeans.Builder> job) {
+      checkRunning();
+      if (!slots.tryAcquire())
+         return null;
+      return start(job);
+   }
+
+   private static Callable<KMeans.Builder> constant(final KMeans.Builder job) {
+      return new Callable<KMeans.Builder>() {
+         public KMeans.Builder call() {
+            return job;
+         }
+      };
+   }
+
+   private void checkRunning() {
+      if (shutdown)
+         throw new IllegalStateException("Scheduler is shut down");
+   }
+
+   /**
+    * Hands a job that holds a slot to the workers. The slot is given back
+    * when the job finishes, fails or is cancelled.
+    */
+   private Future<KMeans> start(final Callable<KMeans.Builder> job) {
+      firstSubmit.compareAndSet(0, System.nanoTime());
+      FutureTask<KMeans> task = new FutureTask<KMeans>(new Callable<KMeans>() {
+         public KMeans call() throws Exception {
+            try {
+               KMeans result = job.call().schedule(pool, buffers).build();
+               completed.incrementAndGet();
+               return result;
+            } catch (Exception e) {
+               failed.incrementAndGet();
+               throw e;
+            } catch (Error e) {
+               failed.incrementAndGet();
+               throw e;
+            }
+         }
+      }) {
+         @Override
+         protected void done() {
+            lastDone = System.nanoTime();
+            slots.release();
+         }
+      };
+
+      try {
+         pool.execute(task);
+      } catch (RejectedExecutionException e) {
+         slots.release();
+         throw new IllegalStateException("Scheduler is shut down");
+      }
+      submitted.incrementAndGet();
+      return task;
+   }
+
+   /**
+    * Accepts no more jobs and waits for the submitted ones to finish.
+    */
+   public void shutdown() throws InterruptedException {
+      shutdown = true;
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+
+   public long getSubmitted() {
+      return submitted.get();
+   }
+
+   /**
+    * Jobs that returned a KMeans.
+    */
+   public long getCompleted() {
+      return completed.get();
+   }
+
+   /**
+    * Jobs that threw (their Future rethrows it).
+    */
+   public long getFailed() {
+      return failed.get();
+   }
+
+   /**
+    * Completed jobs per second, from the first submission to the last job
+    * done (or now, if none is done yet).
+    */
+   public double getJobsPerSecond() {
+      long first = firstSubmit.get();
+      if (first == 0)
+         return 0;
+      long last = completed.get() + failed.get() > 0 ? lastDone : System.nanoTime();
+      return last > first ? completed.get() / ((last - first) / 1e9) : 0;
+   }
+
+   /**
+    * Bytes of scratch arrays currently kept for the next jobs.
+    */
+   public long getBufferBytes() {
+      return buffers.held();
+   }
+
+   public String toString() {
+      return submitted.get() + " jobs submitted, " + completed.get() + " completed, "
+             + failed.get() + " failed, " + getJobsPerSecond() + " jobs/s";
+   }
+
+
+   /***********************************************************************
+    * Throughput
+    **********************************************************************/
+
+   /**
+    * Clusters the points of a file 'jobs' times, one build after the other
+    * and then through a scheduler, and prints the jobs per second of each.
+    * Usage: KMeansScheduler file.csv k jobs
+    */
+   public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+      String file = args.length > 0 ? args[0] : "TestData.csv";
+      int k = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+      int jobs = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+      double[][] points = CSVreader.read(file);
+
+      long start = System.nanoTime();
+      for (int j = 0; j < jobs; j++)
+         new KMeans.Builder(k, points).seed(j).build();
+      double serial = jobs / ((System.nanoTime() - start) / 1e9);
+      System.out.println("one at a time: " + serial + " jobs/s");
+
+      KMeansScheduler scheduler = new KMeansScheduler.Builder().build();
+      List<Future<KMeans>> results = new ArrayList<Future<KMeans>>();
+      for (int j = 0; j < jobs; j++)
+         results.add(scheduler.submit(new KMeans.Builder(k, points).seed(j)));
+      for (Future<KMeans> result : results)
+         result.get();
+      scheduler.shutdown();
+      System.out.println("scheduled:     " + scheduler);
+   }
+}
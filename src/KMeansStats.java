@@ -0,0 +1,224 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Where the time of a KMeans build() went, and how much work each
+ * restart did: nanosecond timers per phase and counters per restart. See
+ * KMeans.getStats(), and IterationListener to receive them as they grow.
+ *
+ * Phases of a build():
+ *   - prepare:  collapsing duplicates, coreset sampling, the KD_TREE tree
+ *               or the GEMM norms
+ *   - restarts: all the restarts (wall time, so parallel restarts overlap)
+ *   - finish:   coreset mode's pass over all points, writing the assignment
+ *               file, expanding duplicates
+ *
+ * Phases of a restart: seeding, assignment, update and WCSS. The LLOYD and
+ * KD_TREE engines assign, update and measure the WCSS in a single pass,
+ * and mini-batch steps assign and update together: both count as
+ * assignment. In coreset mode the best restart also makes the pass over
+ * all points, which counts in its assignment and WCSS timers and in its
+ * distances, as well as in finish.
+ ************************************************************************/
+
+import java.util.Arrays;
+
+public class KMeansStats {
+
+   private final Restart[] restarts;
+   private int best;            // index of the restart whose result was kept
+   long prepareNanos;
+   long restartsNanos;
+   long finishNanos;
+
+   KMeansStats(int restarts) {
+      this.restarts = new Restart[restarts];
+      for (int r = 0; r < restarts; r++)
+         this.restarts[r] = new Restart(r);
+   }
+
+   /**
+    * Counters and timers of one restart. Only its own run writes them.
+    */
+   public static class Restart {
+      private final int index;
+      private int steps;                  // Lloyd iterations or mini-batch steps
+      private double[] WCSS = new double[16];
+      long seedingNanos;
+      long assignmentNanos;
+      long updateNanos;
+      long WCSSNanos;
+      long nanos;                         // the whole restart
+      long distances;                     // distances to centroids computed
+      private long reassigned;            // -1 once a step did not track it
+      long emptyClusters;                 // empty clusters given a new centroid
+
+      Restart(int index) {
+         this.index = index;
+      }
+
+      /**
+       * Records the end of an iteration.
+       */
+      void step(double WCSS, long reassigned) {
+         if (steps == this.WCSS.length)
+            this.WCSS = Arrays.copyOf(this.WCSS, 2 * steps);
+         this.WCSS[steps++] = WCSS;
+         if (reassigned < 0 || this.reassigned < 0)
+            this.reassigned = -1;
+         else
+            this.reassigned += reassigned;
+      }
+
+      public int getIndex() {
+         return index;
+      }
+
+      /**
+       * Number of Lloyd iterations (mini-batch steps) run.
+       */
+      public int getSteps() {
+         return steps;
+      }
+
+      /**
+       * WCSS after every iteration (mini-batch: the smoothed estimate).
+       */
+      public double[] getWCSS() {
+         return Arrays.copyOf(WCSS, steps);
+      }
+
+      public long getSeedingNanos() {
+         return seedingNanos;
+      }
+
+      public long getAssignmentNanos() {
+         return assignmentNanos;
+      }
+
+      public long getUpdateNanos() {
+         return updateNanos;
+      }
+
+      public long getWCSSNanos() {
+         return WCSSNanos;
+      }
+
+      /**
+       * Whole restart, phases and bookkeeping included.
+       */
+      public long getNanos() {
+         return nanos;
+      }
+
+      /**
+       * Number of distances to centroids computed by the iterations and the
+       * final WCSS (seeding not included). The bounds of HAMERLY and
+       * ELKAN and the tree of KD_TREE make this much less than m * k per
+       * iteration.
+       */
+      public long getDistances() {
+         return distances;
+      }
+
+      /**
+       * Total # of points that changed cluster over all iterations, or -1
+       * if not tracked (KD_TREE, mini-batch).
+       */
+      public long getReassigned() {
+         return reassigned;
+      }
+
+      /**
+       * Number of times an empty cluster was given a random point as its
+       * centroid.
+       */
+      public long getEmptyClusters() {
+         return emptyClusters;
+      }
+
+      public String toString() {
+         return "restart " + index + ": " + steps + " steps, WCSS "
+                + (steps == 0 ? Double.NaN : WCSS[steps - 1])
+                + ", seeding " + millis(seedingNanos) + " ms, assignment "
+                + millis(assignmentNanos) + " ms, update " + millis(updateNanos)
+                + " ms, WCSS " + millis(WCSSNanos) + " ms, total " + millis(nanos)
+                + " ms, " + distances + " distances, " + reassigned + " reassigned, "
+                + emptyClusters + " empty clusters";
+      }
+   }
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+
+   /**
+    * Statistics of every restart, by index.
+    */
+   public Restart[] getRestarts() {
+      return restarts.clone();
+   }
+
+   Restart getRestart(int r) {
+      return restarts[r];
+   }
+
+   /**
+    * Index of the restart whose result was kept (the lowest WCSS).
+    */
+   public int getBest() {
+      return best;
+   }
+
+   void setBest(int best) {
+      this.best = best;
+   }
+
+   public long getPrepareNanos() {
+      return prepareNanos;
+   }
+
+   public long getRestartsNanos() {
+      return restartsNanos;
+   }
+
+   public long getFinishNanos() {
+      return finishNanos;
+   }
+
+   public long getTotalNanos() {
+      return prepareNanos + restartsNanos + finishNanos;
+   }
+
+   /**
+    * Lloyd iterations (mini-batch steps) of all restarts.
+    */
+   public long getSteps() {
+      long steps = 0;
+      for (Restart restart : restarts)
+         steps += restart.steps;
+      return steps;
+   }
+
+   /**
+    * Distances computed by all restarts (see Restart.getDistances()).
+    */
+   public long getDistances() {
+      long distances = 0;
+      for (Restart restart : restarts)
+         distances += restart.distances;
+      return distances;
+   }
+
+   private static double millis(long nanos) {
+      return nanos / 1e6;
+   }
+
+   public String toString() {
+      StringBuilder s = new StringBuilder();
+      s.append("prepare " + millis(prepareNanos) + " ms, restarts " + millis(restartsNanos)
+               + " ms, finish " + millis(finishNanos) + " ms; best: restart " + best + "\n");
+      for (Restart restart : restarts)
+         s.append(restart).append('\n');
+      return s.toString();
+   }
+}
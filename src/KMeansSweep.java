@@ -0,0 +1,573 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Clusters the same points for every k in a range, to choose k:
+ * the WCSS curve, its elbow, and the silhouette of every k on a sample.
+ *
+ * Work shared across k, instead of one independent KMeans per k:
+ *   - seeding: KMeans++ picks centroids one at a time, each depending only
+ *     on the ones before, so the seeds for k are the first k seeds for
+ *     kMax. Every restart seeds once, for kMax, and each k starts from a
+ *     prefix of those seeds (see KMeans.Builder.initialCentroids()).
+ *   - data: the points are kept in one PointStore, and the KD_TREE tree or
+ *     the GEMM point norms are built once for all k.
+ *   - silhouette: the distances between the sample points are computed
+ *     once; each k then only regroups them by cluster.
+ * The k values are independent and run at the same time on 'parallelism'
+ * threads (each k runs its restarts one after the other).
+ *
+ * The elbow is the k whose (k, WCSS) point is farthest from the straight
+ * line between the first and the last point of the curve, both axes
+ * scaled to [0, 1]. The silhouette of a point is (b - a) / max(a, b), a
+ * being its mean distance to the sample points of its own cluster and b
+ * the lowest mean distance to those of another cluster; that of k is the
+ * mean over the sample, in [-1, 1], higher being better.
+ ************************************************************************/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class KMeansSweep {
+
+   // required
+   private int kMin;
+   private int kMax;
+   private PointStore points;
+
+   // optional parameters (see KMeans)
+   private int iterations;       // restarts per k
+   private double epsilon;
+   private boolean useEpsilon;
+   private boolean L1norm;
+   private KMeans.Engine engine;
+   private int parallelism;      // number of k values clustered at the same time
+   private double[] weights;
+   private int sampleSize;       // points in the silhouette sample
+
+   // shared by all k
+   private double[][][] seeds;   // KMeans++ seeds for kMax, per restart
+   private long[] runSeeds;      // seed of the KMeans of every restart
+   private KDTree tree;
+   private Gemm gemm;
+   private int[] sample;         // indices of the silhouette sample
+   private double[] sampleDist;  // distances between sample points, packed (see pair())
+
+   // output, indexed by k - kMin
+   private double[][][] centroids;
+   private double[] WCSS;
+   private double[] silhouette;
+
+   // timing information
+   private long start;
+   private long end;
+
+   private KMeansSweep(Builder builder) {
+      start = System.currentTimeMillis();
+
+      kMin = builder.kMin;
+      kMax = builder.kMax;
+      points = builder.points;
+      iterations = builder.iterations;
+      epsilon = builder.epsilon;
+      useEpsilon = builder.useEpsilon;
+      L1norm = builder.L1norm;
+      engine = builder.engine;
+      parallelism = builder.parallelism;
+      weights = builder.weights;
+      sampleSize = builder.sampleSize;
+
+      Random gen = builder.hasSeed ? new Random(builder.seed) : new Random();
+      long[] seedingSeeds = new long[iterations];
+      runSeeds = new long[iterations];
+      for (int r = 0; r < iterations; r++) {
+         seedingSeeds[r] = gen.nextLong();
+         runSeeds[r] = gen.nextLong();
+      }
+      chooseSample(new Random(gen.nextLong()));
+
+      int count = kMax - kMin + 1;
+      centroids = new double[count][][];
+      WCSS = new double[count];
+      silhouette = new double[count];
+
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+      try {
+         prepare(executor, seedingSeeds);
+         sweep(executor);
+      } finally {
+         executor.shutdown();
+      }
+
+      end = System.currentTimeMillis();
+   }
+
+   /**
+    * Builder class for constructing KMeansSweep objects. For descriptions of
+    * the fields, see outer class and KMeans.
+    */
+   public static class Builder {
+      // required
+      private final int kMin;
+      private final int kMax;
+      private final PointStore points;
+
+      // optional (default values given)
+      private int iterations     = 10;
+      private double epsilon     = .001;
+      private boolean useEpsilon = true;
+      private boolean L1norm     = true;
+      private KMeans.Engine engine = KMeans.Engine.LLOYD;
+      private int parallelism    = 1;
+      private boolean hasSeed    = false;
+      private long seed;
+      private double[] weights   = null;
+      private int sampleSize     = 1000;
+
+      /**
+       * Sets required parameters: every k in [kMin, kMax] is clustered. The
+       * points are copied into a flat PointStore.
+       */
+      public Builder(int kMin, int kMax, double[][] points) {
+         this(kMin, kMax, PointStore.of(points));
+      }
+
+      /**
+       * Same as Builder(int, int, double[][]), the points used as they are.
+       */
+      public Builder(int kMin, int kMax, PointStore points) {
+         if (kMin < 1 || kMax < kMin)
+            throw new IllegalArgumentException("Required: 1 <= kMin <= kMax");
+         if (kMax > points.size())
+            throw new IllegalArgumentException("Required: # of points >= # of clusters");
+         if (Duplicates.countDistinct(points, kMax) < kMax)
+            throw new IllegalArgumentException("Required: # of distinct points >= # of clusters");
+         this.kMin = kMin;
+         this.kMax = kMax;
+         this.points = points;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 10. Restarts per k; the
+       * one with the lowest WCSS is kept.
+       */
+      public Builder iterations(int iterations) {
+         if (iterations < 1)
+            throw new IllegalArgumentException("Required: iterations >= 1");
+         this.iterations = iterations;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is .001.
+       */
+      public Builder epsilon(double epsilon) {
+         if (epsilon < 0.0)
+            throw new IllegalArgumentException("Required: non-negative value of epsilon. Ex: .001");
+         this.epsilon = epsilon;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is true.
+       */
+      public Builder useEpsilon(boolean useEpsilon) {
+         this.useEpsilon = useEpsilon;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is true.
+       */
+      public Builder useL1norm(boolean L1norm) {
+         this.L1norm = L1norm;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is LLOYD.
+       */
+      public Builder engine(KMeans.Engine engine) {
+         if (engine == null)
+            throw new IllegalArgumentException("Required: an engine. Ex: Engine.HAMERLY");
+         this.engine = engine;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 1. Number of k values
+       * clustered at the same time. Recommended: # of cores.
+       */
+      public Builder parallelism(int parallelism) {
+         if (parallelism < 1)
+            throw new IllegalArgumentException("Required: parallelism >= 1");
+         this.parallelism = parallelism;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is none (random).
+       */
+      public Builder seed(long seed) {
+         this.hasSeed = true;
+         this.seed = seed;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is none (every point weighs 1).
+       * See KMeans.Builder.weights().
+       */
+      public Builder weights(double[] weights) {
+         if (weights.length != points.size())
+            throw new IllegalArgumentException("Required: one weight per point");
+         this.weights = weights;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 1000. Points sampled for
+       * the silhouette, which costs sampleSize^2 / 2 distances (and doubles
+       * of memory) once, then sampleSize^2 additions per k.
+       */
+      public Builder sampleSize(int sampleSize) {
+         if (sampleSize < 2)
+            throw new IllegalArgumentException("Required: sample size >= 2");
+         this.sampleSize = sampleSize;
+         return this;
+      }
+
+      /**
+       * Build a KMeansSweep object: clusters every k.
+       */
+      public KMeansSweep build() {
+         if ((engine == KMeans.Engine.KD_TREE || engine == KMeans.Engine.GEMM) && L1norm)
+            throw new IllegalArgumentException("Required: L2 norm for the " + engine + " engine. Ex: useL1norm(false)");
+         return new KMeansSweep(this);
+      }
+   }
+
+
+   /***********************************************************************
+    * Shared work
+    **********************************************************************/
+
+   /**
+    * Uniform sample (without replacement) for the silhouette, by Floyd's
+    * algorithm, in increasing order.
+    */
+   private void chooseSample(Random gen) {
+      int m = points.size();
+      int size = Math.min(sampleSize, m);
+      boolean[] chosen = new boolean[m];
+      for (int i = m - size; i < m; i++) {
+         int rand = gen.nextInt(i + 1);
+         chosen[chosen[rand] ? i : rand] = true;
+      }
+      sample = new int[size];
+      int s = 0;
+      for (int i = 0; i < m; i++)
+         if (chosen[i])
+            sample[s++] = i;
+   }
+
+   /**
+    * Seeds every restart for kMax, and computes what the k values share: the
+    * tree or norms of the engine and the distances between sample points.
+    */
+   private void prepare(ExecutorService executor, final long[] seedingSeeds) {
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      seeds = new double[iterations][][];
+      for (int r = 0; r < iterations; r++) {
+         final int restart = r;
+         tasks.add(new Callable<Void>() {
+            public Void call() {
+               KMeans.Builder builder = new KMeans.Builder(kMax, points)
+                                                  .seeding(KMeans.Seeding.PLUSPLUS)
+                                                  .seed(seedingSeeds[restart]);
+               if (weights != null)
+                  builder.weights(weights);
+               KMeans.Phases phases = builder.phases();
+               phases.seed();
+               seeds[restart] = phases.getCentroids();
+               return null;
+            }
+         });
+      }
+      tasks.add(new Callable<Void>() {
+         public Void call() {
+            if (engine == KMeans.Engine.KD_TREE)
+               tree = new KDTree(points, weights);
+            else if (engine == KMeans.Engine.GEMM)
+               gemm = new Gemm(points);
+            return null;
+         }
+      });
+      tasks.add(new Callable<Void>() {
+         public Void call() {
+            int size = sample.length;
+            double[][] x = new double[size][];
+            for (int s = 0; s < size; s++)
+               x[s] = points.row(sample[s]);
+            sampleDist = new double[size * (size - 1) / 2];
+            for (int s = 1; s < size; s++)
+               for (int t = 0; t < s; t++)
+                  sampleDist[pair(s, t)] = L1norm ? Distance.L1(x[s], x[t]) : Math.sqrt(Distance.L2(x[s], x[t]));
+            return null;
+         }
+      });
+      invokeAll(executor, tasks);
+   }
+
+   /**
+    * Index of the distance between sample points s and t (s != t) in
+    * 'sampleDist', which holds the lower triangle of the matrix by rows.
+    */
+   private static int pair(int s, int t) {
+      if (s < t)
+         return t * (t - 1) / 2 + s;
+      return s * (s - 1) / 2 + t;
+   }
+
+
+   /***********************************************************************
+    * Sweep
+    **********************************************************************/
+
+   /**
+    * Clusters every k, one task per k.
+    */
+   private void sweep(ExecutorService executor) {
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int k = kMin; k <= kMax; k++) {
+         final int clusters = k;
+         tasks.add(new Callable<Void>() {
+            public Void call() {
+               cluster(clusters);
+               return null;
+            }
+         });
+      }
+      invokeAll(executor, tasks);
+   }
+
+   /**
+    * All restarts for k, from prefixes of the shared seeds; keeps the best.
+    */
+   private void cluster(int k) {
+      KMeans best = null;
+      for (int r = 0; r < iterations; r++) {
+         KMeans.Builder builder = new KMeans.Builder(k, points)
+                                            .initialCentroids(Arrays.copyOf(seeds[r], k))
+                                            .epsilon(epsilon)
+                                            .useEpsilon(useEpsilon)
+                                            .useL1norm(L1norm)
+                                            .engine(engine)
+                                            .seed(runSeeds[r])
+                                            .share(tree, gemm);
+         if (weights != null)
+            builder.weights(weights);
+         KMeans run = builder.build();
+         if (best == null || run.getWCSS() < best.getWCSS())
+            best = run;
+      }
+
+      centroids[k - kMin] = best.getCentroids();
+      WCSS[k - kMin] = best.getWCSS();
+      silhouette[k - kMin] = silhouette(best.getAssignment(), k);
+   }
+
+   /**
+    * Mean silhouette of the sample points for the given assignment. Points
+    * alone in their cluster (within the sample) count as 0, and so does
+    * every point for k = 1.
+    */
+   private double silhouette(int[] assignment, int k) {
+      int size = sample.length;
+      if (k == 1)
+         return 0;
+
+      int[] cluster = new int[size];
+      int[] count = new int[k];
+      for (int s = 0; s < size; s++) {
+         cluster[s] = assignment[sample[s]];
+         count[cluster[s]]++;
+      }
+
+      double total = 0;
+      double[] sum = new double[k];   // distances from point s to each cluster
+      for (int s = 0; s < size; s++) {
+         Arrays.fill(sum, 0);
+         for (int t = 0; t < size; t++)
+            if (t != s)
+               sum[cluster[t]] += sampleDist[pair(s, t)];
+
+         int own = cluster[s];
+         if (count[own] == 1)
+            continue;
+         double a = sum[own] / (count[own] - 1);
+         double b = Double.POSITIVE_INFINITY;
+         for (int c = 0; c < k; c++)
+            if (c != own && count[c] > 0)
+               b = Math.min(b, sum[c] / count[c]);
+         if (b == Double.POSITIVE_INFINITY)
+            continue;   // every sample point in one cluster
+         double max = Math.max(a, b);
+         if (max > 0)
+            total += (b - a) / max;
+      }
+      return total / size;
+   }
+
+   /**
+    * Runs the tasks and waits for all of them. A task's exception is thrown
+    * here.
+    */
+   private static void invokeAll(ExecutorService executor, List<Callable<Void>> tasks) {
+      try {
+         for (Future<Void> future : executor.invokeAll(tasks))
+            future.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException(e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+         if (e.getCause() instanceof Error)
+            throw (Error) e.getCause();
+         throw new IllegalStateException(e.getCause());
+      }
+   }
+
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+
+   private int index(int k) {
+      if (k < kMin || k > kMax)
+         throw new IllegalArgumentException("Required: kMin <= k <= kMax");
+      return k - kMin;
+   }
+
+   public int getKMin() {
+      return kMin;
+   }
+
+   public int getKMax() {
+      return kMax;
+   }
+
+   /**
+    * Centroids of the best restart for k.
+    */
+   public double[][] getCentroids(int k) {
+      return centroids[index(k)];
+   }
+
+   /**
+    * Model for the centroids of k, to assign points to them.
+    */
+   public KMeansModel getModel(int k) {
+      return new KMeansModel(centroids[index(k)], L1norm);
+   }
+
+   public double getWCSS(int k) {
+      return WCSS[index(k)];
+   }
+
+   /**
+    * WCSS of every k, from kMin to kMax.
+    */
+   public double[] getWCSS() {
+      return WCSS.clone();
+   }
+
+   /**
+    * Mean silhouette of the sample for k (see outer class).
+    */
+   public double getSilhouette(int k) {
+      return silhouette[index(k)];
+   }
+
+   /**
+    * Silhouette of every k, from kMin to kMax.
+    */
+   public double[] getSilhouette() {
+      return silhouette.clone();
+   }
+
+   /**
+    * The k at the elbow of the WCSS curve (see outer class). kMin if the
+    * range holds fewer than 3 values.
+    */
+   public int getElbow() {
+      int count = WCSS.length;
+      if (count < 3)
+         return kMin;
+      double top = WCSS[0];
+      double bottom = WCSS[count - 1];
+      double range = top - bottom;
+      if (!(range > 0))
+         return kMin;
+
+      // distance to the line from (0, 1) to (1, 0) is proportional to 1 - x - y
+      int elbow = 0;
+      double farthest = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < count; i++) {
+         double x = (double) i / (count - 1);
+         double y = (WCSS[i] - bottom) / range;
+         if (1 - x - y > farthest) {
+            farthest = 1 - x - y;
+            elbow = i;
+         }
+      }
+      return kMin + elbow;
+   }
+
+   /**
+    * The k with the highest silhouette.
+    */
+   public int getBestSilhouette() {
+      int best = 0;
+      for (int i = 1; i < silhouette.length; i++)
+         if (silhouette[i] > silhouette[best])
+            best = i;
+      return kMin + best;
+   }
+
+   public String getTiming() {
+      return "KMeansSweep took: " + (double) (end - start) / 1000.0 + " seconds";
+   }
+
+
+   /***********************************************************************
+    * Command line
+    **********************************************************************/
+
+   /**
+    * Prints the WCSS and silhouette of every k in [kMin, kMax], and the k
+    * each of them suggests. Usage: java KMeansSweep points.csv kMin kMax
+    */
+   public static void main(String[] args) throws IOException {
+      double[][] points = CSVreader.read(args[0]);
+      int kMin = Integer.parseInt(args[1]);
+      int kMax = Integer.parseInt(args[2]);
+
+      KMeansSweep sweep = new KMeansSweep.Builder(kMin, kMax, points)
+                                         .parallelism(Runtime.getRuntime().availableProcessors())
+                                         .build();
+      System.out.println("k\tWCSS\tsilhouette");
+      for (int k = kMin; k <= kMax; k++)
+         System.out.println(k + "\t" + sweep.getWCSS(k) + "\t" + sweep.getSilhouette(k));
+      System.out.println("elbow: k = " + sweep.getElbow() + ", best silhouette: k = " + sweep.getBestSilhouette());
+      System.out.println(sweep.getTiming());
+   }
+}
@@ -0,0 +1,81 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: In-process transport to a Shard that behaves like a remote one:
+ * every request and every reply is serialized to bytes and read back, so
+ * the coordinator only ever sees copies, exactly as over a socket. Used to
+ * test the sharding protocol on a single machine.
+ ************************************************************************/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+public class LoopbackConnection implements ShardConnection {
+
+   private final Shard shard;
+   private long bytes;   // total size of the messages sent both ways
+
+   public LoopbackConnection(Shard shard) {
+      this.shard = shard;
+   }
+
+   public double totalWeight() throws IOException {
+      return send(shard.totalWeight());
+   }
+
+   public double[] pick(double target) throws IOException {
+      return send(shard.pick(send(target)));
+   }
+
+   public double cost(double[][] candidates) throws IOException {
+      return send(shard.cost(send(candidates)));
+   }
+
+   public double addCandidates(double[][] candidates) throws IOException {
+      return send(shard.addCandidates(send(candidates)));
+   }
+
+   public double[][] sample(double oversampling, double totalCost, long seed) throws IOException {
+      return send(shard.sample(send(oversampling), send(totalCost), send(seed)));
+   }
+
+   public double[] weigh() throws IOException {
+      return send(shard.weigh());
+   }
+
+   public Shard.Stats assign(double[][] centroids) throws IOException {
+      return send(shard.assign(send(centroids)));
+   }
+
+   /**
+    * Bytes sent so far, requests and replies.
+    */
+   public long getBytes() {
+      return bytes;
+   }
+
+   /**
+    * A copy of 'message', made by serializing it.
+    */
+   @SuppressWarnings("unchecked")
+   private <T extends Serializable> T send(T message) throws IOException {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(buf);
+      out.writeObject(message);
+      out.close();
+      bytes += buf.size();
+
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buf.toByteArray()));
+      try {
+         return (T) in.readObject();
+      } catch (ClassNotFoundException e) {
+         throw new IOException(e);
+      } finally {
+         in.close();
+      }
+   }
+}
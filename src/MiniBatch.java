@@ -0,0 +1,99 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ * 
+ * PURPOSE: Mini-batch k-means updates (Sculley, "Web-Scale K-Means 
+ * Clustering", 2010). Shared by the mini-batch mode of KMeans and by
+ * StreamingKMeans.
+ * 
+ * Every batch is first assigned to the current centroids, then each point
+ * moves its centroid towards itself with a per-centroid learning rate of
+ * 1 / (# of points the centroid has absorbed so far), so that a centroid is
+ * always the running mean of the points it has been given.
+ * 
+ * Convergence is judged on an exponentially weighted average of the batch
+ * cost per point, since the exact WCSS would need a pass over all points.
+ ************************************************************************/
+
+class MiniBatch {
+
+   private final double[][] centroids;   // updated in place
+   private final long[] counts;          // # of points absorbed by each centroid
+   private final boolean L1norm;
+   private final double smoothing;       // weight of the newest batch in the average
+   private final double epsilon;         // minimal relative improvement of the average
+   private final int patience;           // # of steps without improvement before stopping
+
+   private int[] nearest = new int[0];   // assignment of the current batch
+   private double cost = Double.NaN;     // smoothed cost per point
+   private double bestCost = Double.POSITIVE_INFINITY;
+   private int stale;                    // steps since the smoothed cost last improved
+
+   /**
+    * @param centroids initial centroids; updated in place
+    * @param counts    initial # of points behind each centroid (may be all 0)
+    * @param smoothing weight in (0, 1] of the newest batch in the smoothed cost
+    * @param epsilon   improvements of the smoothed cost smaller than this 
+    *                  fraction do not count as improvements
+    * @param patience  # of steps without improvement after which converged()
+    */
+   MiniBatch(double[][] centroids, long[] counts, boolean L1norm, 
+         double smoothing, double epsilon, int patience) {
+      this.centroids = centroids;
+      this.counts = counts;
+      this.L1norm = L1norm;
+      this.smoothing = smoothing;
+      this.epsilon = epsilon;
+      this.patience = patience;
+   }
+
+   /**
+    * Processes the points batch[from, to). The rows are only read.
+    */
+   void step(double[][] batch, int from, int to) {
+      int size = to - from;
+      if (nearest.length < size)
+         nearest = new int[size];
+
+      // assign the whole batch to the centroids as they were before the batch
+      double batchCost = 0;
+      for (int i = 0; i < size; i++) {
+         double[] x = batch[from + i];
+         int minLocation = Distance.nearest(x, centroids, L1norm);
+         nearest[i] = minLocation;
+         batchCost += L1norm ? Distance.L1(x, centroids[minLocation]) : Distance.L2(x, centroids[minLocation]);
+      }
+
+      // move centroids towards their points with per-centroid learning rates
+      for (int i = 0; i < size; i++) {
+         double[] x = batch[from + i];
+         double[] c = centroids[nearest[i]];
+         double eta = 1.0 / ++counts[nearest[i]];
+         for (int j = 0; j < c.length; j++)
+            c[j] += eta * (x[j] - c[j]);
+      }
+
+      // smoothed cost and convergence bookkeeping
+      batchCost /= size;
+      cost = Double.isNaN(cost) ? batchCost : (1 - smoothing) * cost + smoothing * batchCost;
+      if (cost < bestCost * (1 - epsilon)) {
+         bestCost = cost;
+         stale = 0;
+      }
+      else
+         stale++;
+   }
+
+   /**
+    * True once the smoothed cost has not improved for 'patience' steps.
+    */
+   boolean converged() {
+      return stale >= patience;
+   }
+
+   /**
+    * Smoothed cost per point. Multiply by the # of points for a WCSS estimate.
+    */
+   double cost() {
+      return cost;
+   }
+}
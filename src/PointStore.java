@@ -0,0 +1,543 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ * 
+ * PURPOSE: Storage for the data points of KMeans.
+ * 
+ * The points live row-major in one flat block of memory: either a single
+ * double[] on the heap or a DoubleBuffer off the heap (a direct buffer, or
+ * a memory-mapped binary point file). Each of those also comes in single
+ * precision (float[] or FloatBuffer), for half the memory and half the 
+ * bandwidth per pass; everything computed from the points (distances, 
+ * sums, WCSS) is still accumulated in double. Compared to a double[][], that is 
+ * one object instead of m, no pointer chasing in the distance loops, and 
+ * nothing for the garbage collector to scan when it is off the heap.
+ * 
+ * The distance and summation kernels used by KMeans are methods of the 
+ * store, so that every layout can run them straight on its own memory.
+ * 
+ * A mapped binary point file may be larger than the heap, or than RAM: it
+ * is mapped in segments, the OS pages the points in as they are read, and
+ * KMeans streams over it in chunks, asking the store to prefetch the next
+ * chunk while it computes on the current one.
+ ************************************************************************/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public abstract class PointStore {
+
+   protected final int m;   // number of points
+   protected final int n;   // number of dimensions
+
+   protected PointStore(int m, int n) {
+      if (m < 1 || n < 1)
+         throw new IllegalArgumentException("Required: at least one point and one dimension");
+      this.m = m;
+      this.n = n;
+   }
+
+   /***********************************************************************
+    * Factories
+    **********************************************************************/
+
+   /**
+    * Copies double[][] into a flat array on the heap. This is the adapter for
+    * code that holds its points as double[][]; the rows can be dropped after.
+    */
+   public static PointStore of(double[][] points) {
+      int m = points.length;
+      int n = m == 0 ? 0 : points[0].length;
+      double[] values = new double[m * n];
+      for (int i = 0; i < m; i++) {
+         if (points[i].length != n)
+            throw new IllegalArgumentException("dimension error");
+         System.arraycopy(points[i], 0, values, i * n, n);
+      }
+      return new Heap(values, m, n);
+   }
+
+   /**
+    * Uses a flat row-major array (point i is values[i * n, (i + 1) * n)) 
+    * without copying it.
+    */
+   public static PointStore wrap(double[] values, int n) {
+      if (n < 1 || values.length % n != 0)
+         throw new IllegalArgumentException("dimension error");
+      return new Heap(values, values.length / n, n);
+   }
+
+   /**
+    * Copies double[][] into a direct buffer outside of the heap.
+    */
+   public static PointStore offHeap(double[][] points) {
+      int m = points.length;
+      int n = m == 0 ? 0 : points[0].length;
+      DoubleBuffer values = ByteBuffer.allocateDirect(8 * m * n)
+                                      .order(ByteOrder.nativeOrder())
+                                      .asDoubleBuffer();
+      for (int i = 0; i < m; i++) {
+         if (points[i].length != n)
+            throw new IllegalArgumentException("dimension error");
+         values.put(points[i]);
+      }
+      return new Buffer(values, m, n);
+   }
+
+   /**
+    * Copies float[][] into a flat float[] on the heap.
+    */
+   public static PointStore of(float[][] points) {
+      int m = points.length;
+      int n = m == 0 ? 0 : points[0].length;
+      float[] values = new float[m * n];
+      for (int i = 0; i < m; i++) {
+         if (points[i].length != n)
+            throw new IllegalArgumentException("dimension error");
+         System.arraycopy(points[i], 0, values, i * n, n);
+      }
+      return new FloatHeap(values, m, n);
+   }
+
+   /**
+    * Uses a flat row-major float[] without copying it.
+    */
+   public static PointStore wrap(float[] values, int n) {
+      if (n < 1 || values.length % n != 0)
+         throw new IllegalArgumentException("dimension error");
+      return new FloatHeap(values, values.length / n, n);
+   }
+
+   /**
+    * Uses a row-major FloatBuffer (heap, direct or mapped) without copying
+    * it. The points are values[0, limit).
+    */
+   public static PointStore wrap(FloatBuffer values, int n) {
+      if (n < 1 || values.limit() % n != 0)
+         throw new IllegalArgumentException("dimension error");
+      return new FloatOffHeap(values, values.limit() / n, n);
+   }
+
+   /**
+    * Maps a float64 or float32 binary point file (see BinaryReader) without
+    * copying. A float32 file gives a single precision store. The file may be
+    * larger than the heap: only the pages being read are held in memory.
+    */
+   public static PointStore map(String inFile) throws IOException {
+      return new Mapped(BinaryReader.map(inFile));
+   }
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+
+   /**
+    * Number of points.
+    */
+   public int size() {
+      return m;
+   }
+
+   /**
+    * Number of dimensions of every point.
+    */
+   public int dimension() {
+      return n;
+   }
+
+   /**
+    * Coordinate j of point i.
+    */
+   public abstract double get(int i, int j);
+
+   /**
+    * Copies point i into dst[0, n).
+    */
+   public void copy(int i, double[] dst) {
+      copy(i, dst, 0);
+   }
+
+   /**
+    * Copies point i into dst[offset, offset + n).
+    */
+   public abstract void copy(int i, double[] dst, int offset);
+
+   /**
+    * A copy of point i.
+    */
+   public double[] row(int i) {
+      double[] row = new double[n];
+      copy(i, row);
+      return row;
+   }
+
+   /***********************************************************************
+    * Kernels
+    **********************************************************************/
+
+   /**
+    * L1 distance between point i and y. See Distance.L1.
+    */
+   abstract double L1(int i, double[] y);
+
+   /**
+    * Squared L2 distance between point i and y. See Distance.L2.
+    */
+   abstract double L2(int i, double[] y);
+
+   /**
+    * Index of the centroid nearest to point i. See Distance.nearest.
+    */
+   abstract int nearest(int i, double[][] centroids, boolean L1norm);
+
+   /**
+    * sum += weight * point i.
+    */
+   abstract void addTo(int i, double weight, double[] sum);
+
+   /***********************************************************************
+    * Out-of-core
+    **********************************************************************/
+
+   /**
+    * True if the points are paged in from a file, so that passes over them
+    * should go chunk by chunk and prefetch().
+    */
+   boolean onDisk() {
+      return false;
+   }
+
+   /**
+    * Hint that points [from, to) are read next. Does not block.
+    */
+   void prefetch(int from, int to) {
+   }
+
+   /***********************************************************************
+    * Layouts
+    **********************************************************************/
+
+   /**
+    * Flat double[] on the heap.
+    */
+   static class Heap extends PointStore {
+      private final double[] values;
+
+      Heap(double[] values, int m, int n) {
+         super(m, n);
+         this.values = values;
+      }
+
+      @Override
+      public double get(int i, int j) {
+         return values[i * n + j];
+      }
+
+      @Override
+      public void copy(int i, double[] dst, int offset) {
+         System.arraycopy(values, i * n, dst, offset, n);
+      }
+
+      @Override
+      double L1(int i, double[] y) {
+         return Distance.L1(values, i * n, y);
+      }
+
+      @Override
+      double L2(int i, double[] y) {
+         return Distance.L2(values, i * n, y);
+      }
+
+      @Override
+      int nearest(int i, double[][] centroids, boolean L1norm) {
+         return Distance.nearest(values, i * n, centroids, L1norm);
+      }
+
+      @Override
+      void addTo(int i, double weight, double[] sum) {
+         int offset = i * n;
+         for (int j = 0; j < n; j++)
+            sum[j] += weight * values[offset + j];
+      }
+   }
+
+   /**
+    * DoubleBuffer, typically off the heap (direct or memory-mapped).
+    */
+   static class Buffer extends PointStore {
+      private final DoubleBuffer values;
+
+      Buffer(DoubleBuffer values, int m, int n) {
+         super(m, n);
+         this.values = values;
+      }
+
+      @Override
+      public double get(int i, int j) {
+         return values.get(i * n + j);
+      }
+
+      @Override
+      public void copy(int i, double[] dst, int offset) {
+         int from = i * n;
+         for (int j = 0; j < n; j++)
+            dst[offset + j] = values.get(from + j);
+      }
+
+      @Override
+      double L1(int i, double[] y) {
+         if (y.length != n) throw new IllegalArgumentException("dimension error");
+         int offset = i * n;
+         double dist = 0;
+         for (int j = 0; j < n; j++)
+            dist += Math.abs(values.get(offset + j) - y[j]);
+         return dist;
+      }
+
+      @Override
+      double L2(int i, double[] y) {
+         if (y.length != n) throw new IllegalArgumentException("dimension error");
+         int offset = i * n;
+         double dist = 0;
+         for (int j = 0; j < n; j++) {
+            double diff = values.get(offset + j) - y[j];
+            dist += diff * diff;
+         }
+         return dist;
+      }
+
+      @Override
+      int nearest(int i, double[][] centroids, boolean L1norm) {
+         if (centroids[0].length != n) throw new IllegalArgumentException("dimension error");
+         int best = 0;
+         double bestDist = Double.POSITIVE_INFINITY;
+         for (int j = 0; j < centroids.length; j++) {
+            double dist = L1norm ? L1(i, centroids[j]) : L2(i, centroids[j]);
+            if (dist < bestDist) {
+               bestDist = dist;
+               best = j;
+            }
+         }
+         return best;
+      }
+
+      @Override
+      void addTo(int i, double weight, double[] sum) {
+         int offset = i * n;
+         for (int j = 0; j < n; j++)
+            sum[j] += weight * values.get(offset + j);
+      }
+   }
+
+   /**
+    * Binary point file mapped in segments (see BinaryReader.map). Each segment
+    * is a Buffer or FloatOffHeap store of its own; points are looked up in
+    * the segment holding them.
+    */
+   static class Mapped extends PointStore {
+      // pages in prefetched points in the background, one range at a time
+      private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(
+         new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+               Thread thread = new Thread(r, "PointStore prefetch");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+
+      private final PointStore[] segments;
+      private final MappedByteBuffer[] pages;
+      private final int rowsPerSegment;
+      private final int rowSize;         // bytes per point
+
+      Mapped(BinaryReader.Mapped file) {
+         super(file.rows(), file.columns());
+         int dtype = file.dtype();
+         if (dtype != BinaryReader.FLOAT64 && dtype != BinaryReader.FLOAT32)
+            throw new IllegalArgumentException("Required: float64 or float32 point file");
+
+         rowsPerSegment = file.rowsPerSegment();
+         rowSize = n * BinaryReader.width(dtype);
+         segments = new PointStore[file.segments()];
+         pages = new MappedByteBuffer[file.segments()];
+         for (int s = 0; s < segments.length; s++) {
+            pages[s] = file.segment(s);
+            int rows = Math.min(rowsPerSegment, m - s * rowsPerSegment);
+            if (dtype == BinaryReader.FLOAT32)
+               segments[s] = new FloatOffHeap(pages[s].asFloatBuffer(), rows, n);
+            else
+               segments[s] = new Buffer(pages[s].asDoubleBuffer(), rows, n);
+         }
+      }
+
+      @Override
+      public double get(int i, int j) {
+         return segments[i / rowsPerSegment].get(i % rowsPerSegment, j);
+      }
+
+      @Override
+      public void copy(int i, double[] dst, int offset) {
+         segments[i / rowsPerSegment].copy(i % rowsPerSegment, dst, offset);
+      }
+
+      @Override
+      double L1(int i, double[] y) {
+         return segments[i / rowsPerSegment].L1(i % rowsPerSegment, y);
+      }
+
+      @Override
+      double L2(int i, double[] y) {
+         return segments[i / rowsPerSegment].L2(i % rowsPerSegment, y);
+      }
+
+      @Override
+      int nearest(int i, double[][] centroids, boolean L1norm) {
+         return segments[i / rowsPerSegment].nearest(i % rowsPerSegment, centroids, L1norm);
+      }
+
+      @Override
+      void addTo(int i, double weight, double[] sum) {
+         segments[i / rowsPerSegment].addTo(i % rowsPerSegment, weight, sum);
+      }
+
+      @Override
+      boolean onDisk() {
+         return true;
+      }
+
+      @Override
+      void prefetch(int from, int to) {
+         for (int s = from / rowsPerSegment; from < to; s++) {
+            int first = s * rowsPerSegment;
+            int last = Math.min(to, first + rowsPerSegment);
+            final MappedByteBuffer range = pages[s].slice((from - first) * rowSize, (last - from) * rowSize);
+            PREFETCHER.execute(new Runnable() {
+               public void run() {
+                  range.load();
+               }
+            });
+            from = last;
+         }
+      }
+   }
+
+   /**
+    * Flat float[] on the heap.
+    */
+   static class FloatHeap extends PointStore {
+      private final float[] values;
+
+      FloatHeap(float[] values, int m, int n) {
+         super(m, n);
+         this.values = values;
+      }
+
+      @Override
+      public double get(int i, int j) {
+         return values[i * n + j];
+      }
+
+      @Override
+      public void copy(int i, double[] dst, int offset) {
+         int from = i * n;
+         for (int j = 0; j < n; j++)
+            dst[offset + j] = values[from + j];
+      }
+
+      @Override
+      double L1(int i, double[] y) {
+         return Distance.L1(values, i * n, y);
+      }
+
+      @Override
+      double L2(int i, double[] y) {
+         return Distance.L2(values, i * n, y);
+      }
+
+      @Override
+      int nearest(int i, double[][] centroids, boolean L1norm) {
+         return Distance.nearest(values, i * n, centroids, L1norm);
+      }
+
+      @Override
+      void addTo(int i, double weight, double[] sum) {
+         int offset = i * n;
+         for (int j = 0; j < n; j++)
+            sum[j] += weight * values[offset + j];
+      }
+   }
+
+   /**
+    * FloatBuffer, typically off the heap (direct or memory-mapped).
+    */
+   static class FloatOffHeap extends PointStore {
+      private final FloatBuffer values;
+
+      FloatOffHeap(FloatBuffer values, int m, int n) {
+         super(m, n);
+         this.values = values;
+      }
+
+      @Override
+      public double get(int i, int j) {
+         return values.get(i * n + j);
+      }
+
+      @Override
+      public void copy(int i, double[] dst, int offset) {
+         int from = i * n;
+         for (int j = 0; j < n; j++)
+            dst[offset + j] = values.get(from + j);
+      }
+
+      @Override
+      double L1(int i, double[] y) {
+         if (y.length != n) throw new IllegalArgumentException("dimension error");
+         int offset = i * n;
+         double dist = 0;
+         for (int j = 0; j < n; j++)
+            dist += Math.abs(values.get(offset + j) - y[j]);
+         return dist;
+      }
+
+      @Override
+      double L2(int i, double[] y) {
+         if (y.length != n) throw new IllegalArgumentException("dimension error");
+         int offset = i * n;
+         double dist = 0;
+         for (int j = 0; j < n; j++) {
+            double diff = values.get(offset + j) - y[j];
+            dist += diff * diff;
+         }
+         return dist;
+      }
+
+      @Override
+      int nearest(int i, double[][] centroids, boolean L1norm) {
+         if (centroids[0].length != n) throw new IllegalArgumentException("dimension error");
+         int best = 0;
+         double bestDist = Double.POSITIVE_INFINITY;
+         for (int j = 0; j < centroids.length; j++) {
+            double dist = L1norm ? L1(i, centroids[j]) : L2(i, centroids[j]);
+            if (dist < bestDist) {
+               bestDist = dist;
+               best = j;
+            }
+         }
+         return best;
+      }
+
+      @Override
+      void addTo(int i, double weight, double[] sum) {
+         int offset = i * n;
+         for (int j = 0; j < n; j++)
+            sum[j] += weight * values.get(offset + j);
+      }
+   }
+}
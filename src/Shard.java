@@ -0,0 +1,206 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Worker side of sharded KMeans (see ShardedKMeans). A shard holds
+ * part of the points and answers the coordinator's requests with small,
+ * mergeable summaries, so that only centroids and statistics ever cross
+ * the wire, never points (except the few sampled as seeding candidates).
+ *
+ * A shard remembers the distance of its points to the seeding candidates,
+ * so that each k-means|| round only compares them to the new ones, and the
+ * assignment of its points from the last assign() request, which is also
+ * how it counts changed assignments.
+ ************************************************************************/
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class Shard implements ShardConnection {
+
+   private final PointStore points;
+   private final double[] weights;            // null --> every point weighs 1
+   private final double[] cumulativeWeights;  // null if unweighted
+   private final boolean L1norm;
+   private final int[] assignment;            // -1 until the first assign()
+
+   // seeding: squared L2 distance to, and index of, the closest candidate
+   private double[] distToClosest;
+   private int[] closest;
+   private int candidates;                    // # of candidates sent so far
+
+   public Shard(PointStore points, double[] weights, boolean L1norm) {
+      if (weights != null && weights.length != points.size())
+         throw new IllegalArgumentException("Required: one weight per point");
+      this.points = points;
+      this.weights = weights;
+      this.L1norm = L1norm;
+
+      int m = points.size();
+      if (weights == null)
+         cumulativeWeights = null;
+      else {
+         cumulativeWeights = new double[m];
+         double total = 0;
+         for (int i = 0; i < m; i++)
+            cumulativeWeights[i] = total += weights[i];
+      }
+      assignment = new int[m];
+      Arrays.fill(assignment, -1);
+   }
+
+   public Shard(double[][] points, boolean L1norm) {
+      this(PointStore.of(points), null, L1norm);
+   }
+
+   /**
+    * Per-cluster sums, weights and cost of the points of one or more shards,
+    * for a given set of centroids. Statistics of disjoint shards merge by
+    * addition, so the coordinator's result does not depend on how the points
+    * were split.
+    */
+   public static class Stats implements Serializable {
+      private static final long serialVersionUID = 1L;
+
+      final double[][] sums;   // weighted sum of the points of each cluster
+      final double[] weights;  // total weight of each cluster
+      double cost;             // WCSS of the points to the given centroids
+      long changed;            // # of points whose cluster changed
+
+      Stats(int k, int n) {
+         sums = new double[k][n];
+         weights = new double[k];
+      }
+
+      /**
+       * Adds the statistics of another shard, for the same centroids.
+       */
+      public void merge(Stats other) {
+         for (int c = 0; c < weights.length; c++) {
+            weights[c] += other.weights[c];
+            for (int j = 0; j < sums[c].length; j++)
+               sums[c][j] += other.sums[c][j];
+         }
+         cost += other.cost;
+         changed += other.changed;
+      }
+
+      public double getCost() {
+         return cost;
+      }
+
+      public long getChanged() {
+         return changed;
+      }
+   }
+
+   private double weight(int i) {
+      return weights == null ? 1 : weights[i];
+   }
+
+   private double distance(int i, double[] y) {
+      return L1norm ? points.L1(i, y) : points.L2(i, y);
+   }
+
+   /***********************************************************************
+    * Protocol (see ShardConnection)
+    **********************************************************************/
+
+   public double totalWeight() {
+      return weights == null ? points.size() : cumulativeWeights[points.size() - 1];
+   }
+
+   public double[] pick(double target) {
+      int m = points.size();
+      if (cumulativeWeights == null)
+         return points.row(Math.min(m - 1, (int) target));
+
+      int lo = 0;
+      int hi = m - 1;
+      while (lo < hi) {
+         int mid = (lo + hi) >>> 1;
+         if (cumulativeWeights[mid] > target)
+            hi = mid;
+         else
+            lo = mid + 1;
+      }
+      return points.row(lo);
+   }
+
+   public double cost(double[][] candidates) {
+      distToClosest = new double[points.size()];
+      Arrays.fill(distToClosest, Double.POSITIVE_INFINITY);
+      closest = new int[points.size()];
+      this.candidates = 0;
+      return addCandidates(candidates);
+   }
+
+   public double addCandidates(double[][] candidates) {
+      if (distToClosest == null)
+         throw new IllegalStateException("Required: cost() before addCandidates()");
+      double cost = 0;
+      for (int i = 0; i < points.size(); i++) {
+         for (int c = 0; c < candidates.length; c++) {
+            double dist = points.L2(i, candidates[c]);
+            if (dist < distToClosest[i]) {
+               distToClosest[i] = dist;
+               closest[i] = this.candidates + c;
+            }
+         }
+         cost += weight(i) * distToClosest[i];
+      }
+      this.candidates += candidates.length;
+      return cost;
+   }
+
+   public double[][] sample(double oversampling, double totalCost, long seed) {
+      if (distToClosest == null)
+         throw new IllegalStateException("Required: cost() before sample()");
+      Random gen = new Random(seed);
+      List<double[]> chosen = new ArrayList<double[]>();
+      for (int i = 0; i < points.size(); i++)
+         if (gen.nextDouble() * totalCost < oversampling * weight(i) * distToClosest[i])
+            chosen.add(points.row(i));
+      return chosen.toArray(new double[chosen.size()][]);
+   }
+
+   public double[] weigh() {
+      if (distToClosest == null)
+         throw new IllegalStateException("Required: cost() before weigh()");
+      double[] total = new double[candidates];
+      for (int i = 0; i < points.size(); i++)
+         total[closest[i]] += weight(i);
+      distToClosest = null;
+      closest = null;
+      return total;
+   }
+
+   public Stats assign(double[][] centroids) {
+      Stats stats = new Stats(centroids.length, points.dimension());
+      for (int i = 0; i < points.size(); i++) {
+         int nearest = points.nearest(i, centroids, L1norm);
+         if (assignment[i] != nearest) {
+            assignment[i] = nearest;
+            stats.changed++;
+         }
+         double w = weight(i);
+         stats.weights[nearest] += w;
+         points.addTo(i, w, stats.sums[nearest]);
+         stats.cost += w * distance(i, centroids[nearest]);
+      }
+      return stats;
+   }
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+
+   /**
+    * Cluster of every point of this shard, as of the last assign().
+    */
+   public int[] getAssignment() {
+      return assignment;
+   }
+}
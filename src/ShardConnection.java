@@ -0,0 +1,57 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: The requests a ShardedKMeans coordinator sends to a shard. A
+ * Shard answers them in-process; a transport (LoopbackConnection, or a
+ * socket connection to a worker JVM) forwards them to a remote one. All
+ * arguments and results are Serializable. A shard keeps two kinds of state
+ * about its own points: their distances to the seeding candidates sent so
+ * far, and their assignment from the last assign().
+ ************************************************************************/
+
+import java.io.IOException;
+
+public interface ShardConnection {
+
+   /**
+    * Total weight of the shard's points (their # if unweighted).
+    */
+   double totalWeight() throws IOException;
+
+   /**
+    * The point at cumulative weight 'target', in [0, totalWeight()): a point
+    * drawn by weight when 'target' is uniform.
+    */
+   double[] pick(double target) throws IOException;
+
+   /**
+    * Seeding: starts over with 'candidates' as the only candidates. Returns
+    * the sum of weight(x) * D(x)^2 over the shard's points, where D is the 
+    * L2 distance to the nearest candidate.
+    */
+   double cost(double[][] candidates) throws IOException;
+
+   /**
+    * Seeding: appends 'candidates' to those sent so far and returns the
+    * updated cost. Only the distances to the new candidates are computed.
+    */
+   double addCandidates(double[][] candidates) throws IOException;
+
+   /**
+    * Seeding (k-means||): the points drawn independently, each with
+    * probability oversampling * weight(x) * D(x)^2 / totalCost.
+    */
+   double[][] sample(double oversampling, double totalCost, long seed) throws IOException;
+
+   /**
+    * Seeding: total weight of the shard's points nearest to each candidate,
+    * in the order they were sent. Ends the seeding.
+    */
+   double[] weigh() throws IOException;
+
+   /**
+    * Lloyd iteration: assigns the shard's points to the nearest centroids
+    * and returns their per-cluster sums, weights, cost and # of changes.
+    */
+   Shard.Stats assign(double[][] centroids) throws IOException;
+}
@@ -0,0 +1,401 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Coordinator of a KMeans job split across shards of the points,
+ * typically held by several worker JVMs (see Shard and ShardConnection).
+ *
+ * ALGORITHM: the same as KMeans with Seeding.SCALABLE and Engine.LLOYD,
+ * written against the shard protocol:
+ *   - k-means|| seeding: each round, the shards sample new candidates by
+ *     their cost to the current ones, and report their cost once the new
+ *     candidates are added; the candidates are then weighted by the shards
+ *     and reclustered into k centroids here.
+ *   - Lloyd iterations: the shards assign their points and return
+ *     per-cluster sums, weights and cost, which are merged into the new
+ *     centroids; the stop test is that of KMeans.
+ * Only centroids and statistics cross the wire, so the traffic per
+ * iteration is O(k n) per shard, however many points the shards hold.
+ *
+ * Shards keep the assignment of their own points, so a job runs a single
+ * restart; run several jobs to compare seeds.
+ ************************************************************************/
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ShardedKMeans {
+
+   // required
+   private int k;                         // number of clusters
+   private List<ShardConnection> shards;  // the shards holding the points
+
+   // optional parameters
+   private double epsilon;       // stops running when improvement in error < epsilon
+   private boolean useEpsilon;   // true  --> stop running when marginal improvement in WCSS < epsilon
+                                 // false --> stop running when 0 improvement
+   private int parallelism;      // number of shards sent a request at the same time
+   private Random gen;           // seeding and empty clusters
+
+   // output
+   private double[][] centroids;
+   private double WCSS;
+   private int steps;            // # of Lloyd iterations
+
+   // timing information
+   private long start;
+   private long end;
+
+   private ShardedKMeans(Builder builder) throws IOException {
+      start = System.currentTimeMillis();
+
+      k = builder.k;
+      shards = builder.shards;
+      epsilon = builder.epsilon;
+      useEpsilon = builder.useEpsilon;
+      parallelism = builder.parallelism;
+      gen = builder.hasSeed ? new Random(builder.seed) : new Random();
+
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+      try {
+         seed(executor);
+         cluster(executor);
+      } finally {
+         executor.shutdown();
+      }
+
+      end = System.currentTimeMillis();
+   }
+
+   /**
+    * Builder class for constructing ShardedKMeans objects. For descriptions
+    * of the fields, see outer class.
+    */
+   public static class Builder {
+      // required
+      private final int k;
+      private final List<ShardConnection> shards;
+
+      // optional (default values given)
+      private double epsilon     = .001;
+      private boolean useEpsilon = true;
+      private int parallelism;
+      private boolean hasSeed    = false;
+      private long seed;
+
+      /**
+       * Sets required parameters.
+       */
+      public Builder(int k, List<ShardConnection> shards) {
+         if (k < 1)
+            throw new IllegalArgumentException("Required: k >= 1");
+         if (shards.isEmpty())
+            throw new IllegalArgumentException("Required: at least one shard");
+         this.k = k;
+         this.shards = new ArrayList<ShardConnection>(shards);
+         this.parallelism = shards.size();
+      }
+
+      /**
+       * Sets optional parameter. Default value is .001.
+       */
+      public Builder epsilon(double epsilon) {
+         if (epsilon < 0.0)
+            throw new IllegalArgumentException("Required: non-negative value of epsilon. Ex: .001");
+         this.epsilon = epsilon;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is true.
+       */
+      public Builder useEpsilon(boolean useEpsilon) {
+         this.useEpsilon = useEpsilon;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is the # of shards: every
+       * request goes to all shards at once.
+       */
+      public Builder parallelism(int parallelism) {
+         if (parallelism < 1)
+            throw new IllegalArgumentException("Required: parallelism >= 1");
+         this.parallelism = parallelism;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is none (random).
+       */
+      public Builder seed(long seed) {
+         this.hasSeed = true;
+         this.seed = seed;
+         return this;
+      }
+
+      /**
+       * Build a ShardedKMeans object: runs the whole job.
+       */
+      public ShardedKMeans build() throws IOException {
+         return new ShardedKMeans(this);
+      }
+   }
+
+
+   /***********************************************************************
+    * Clustering
+    **********************************************************************/
+
+   /**
+    * k-means|| over the shards, then weighted KMeans++ (and Lloyd) on the
+    * candidates, here.
+    */
+   private void seed(ExecutorService executor) throws IOException {
+      final double[][] first = { randomPoint(executor) };
+      List<double[]> candidates = new ArrayList<double[]>();
+      candidates.add(first[0]);
+
+      double cost = sum(broadcast(executor, new Request<Double>() {
+         public Double send(ShardConnection shard, int s) throws IOException {
+            return shard.cost(first);
+         }
+      }));
+      double totalWeight = sum(broadcast(executor, new Request<Double>() {
+         public Double send(ShardConnection shard, int s) throws IOException {
+            return shard.totalWeight();
+         }
+      }));
+
+      int rounds = Math.max(1, (int) Math.ceil(Math.log(totalWeight)));
+      final double oversampling = 2.0 * k;
+      for (int r = 0; r < rounds && cost > 0; r++) {
+         final double roundCost = cost;
+         final long roundSeed = gen.nextLong();
+         final List<double[]> sampled = new ArrayList<double[]>();
+         for (double[][] chosen : broadcast(executor, new Request<double[][]>() {
+            public double[][] send(ShardConnection shard, int s) throws IOException {
+               return shard.sample(oversampling, roundCost, roundSeed + s);
+            }
+         }))
+            for (double[] point : chosen)
+               sampled.add(point);
+         candidates.addAll(sampled);
+
+         cost = sum(broadcast(executor, new Request<Double>() {
+            public Double send(ShardConnection shard, int s) throws IOException {
+               return shard.addCandidates(array(sampled));
+            }
+         }));
+      }
+
+      // too few distinct candidates (small total weight, or the cost reached 0
+      // early): top them up with random points, as the seedings of KMeans
+      // fall back to; the bound only matters with fewer than k distinct
+      // points, which the recluster below reports
+      final List<double[]> extra = new ArrayList<double[]>();
+      for (int tries = 0; tries < 100 * k && distinct(candidates) < k; tries++) {
+         double[] point = randomPoint(executor);
+         candidates.add(point);
+         extra.add(point);
+      }
+      if (!extra.isEmpty())
+         broadcast(executor, new Request<Double>() {
+            public Double send(ShardConnection shard, int s) throws IOException {
+               return shard.addCandidates(array(extra));
+            }
+         });
+
+      // weight every candidate by the total weight of the points closest to it
+      double[][] all = array(candidates);
+      double[] weights = new double[all.length];
+      for (double[] partial : broadcast(executor, new Request<double[]>() {
+         public double[] send(ShardConnection shard, int s) throws IOException {
+            return shard.weigh();
+         }
+      }))
+         for (int c = 0; c < all.length; c++)
+            weights[c] += partial[c];
+
+      KMeans recluster = new KMeans.Builder(k, all)
+                                   .weights(weights)
+                                   .useL1norm(false)
+                                   .seed(gen.nextLong())
+                                   .build();
+      centroids = recluster.getCentroids();
+   }
+
+   /**
+    * Lloyd iterations: merge the shards' statistics into new centroids until
+    * the stop test of KMeans holds, then one last pass for the exact WCSS.
+    */
+   private void cluster(ExecutorService executor) throws IOException {
+      WCSS = Double.MAX_VALUE;
+      Shard.Stats stats;
+      double prevWCSS;
+      do {
+         prevWCSS = WCSS;
+         stats = assign(executor);
+         WCSS = stats.cost;
+         update(stats, executor);
+         steps++;
+      } while (!stop(stats, prevWCSS));
+
+      WCSS = assign(executor).cost;
+   }
+
+   /**
+    * Merged statistics of all shards for the current centroids.
+    */
+   private Shard.Stats assign(ExecutorService executor) throws IOException {
+      final double[][] current = centroids;
+      Shard.Stats total = null;
+      for (Shard.Stats stats : broadcast(executor, new Request<Shard.Stats>() {
+         public Shard.Stats send(ShardConnection shard, int s) throws IOException {
+            return shard.assign(current);
+         }
+      })) {
+         if (total == null)
+            total = stats;
+         else
+            total.merge(stats);
+      }
+      return total;
+   }
+
+   /**
+    * New centroids: the mean of every cluster. An empty cluster gets a
+    * random point instead, as in KMeans.
+    */
+   private void update(Shard.Stats stats, ExecutorService executor) throws IOException {
+      int n = centroids[0].length;
+      double[][] next = new double[k][];
+      for (int c = 0; c < k; c++) {
+         if (stats.weights[c] == 0) {
+            next[c] = randomPoint(executor);
+            continue;
+         }
+         next[c] = new double[n];
+         for (int j = 0; j < n; j++)
+            next[c][j] = stats.sums[c][j] / stats.weights[c];
+      }
+      centroids = next;
+   }
+
+   private boolean stop(Shard.Stats stats, double prevWCSS) {
+      // the assignment, and so the centroids, are final; but the shards
+      // measure the first pass against their assignment from the previous
+      // job, if any, so it proves nothing
+      if (stats.changed == 0 && steps > 1)
+         return true;
+      if (useEpsilon)
+         return epsilon > 1 - (WCSS / prevWCSS);
+      else
+         return prevWCSS == WCSS;
+   }
+
+   /**
+    * A point drawn by weight across all shards.
+    */
+   private double[] randomPoint(ExecutorService executor) throws IOException {
+      List<Double> totals = broadcast(executor, new Request<Double>() {
+         public Double send(ShardConnection shard, int s) throws IOException {
+            return shard.totalWeight();
+         }
+      });
+      double target = gen.nextDouble() * sum(totals);
+      int s = 0;
+      while (s < totals.size() - 1 && target >= totals.get(s))
+         target -= totals.get(s++);
+      return shards.get(s).pick(target);
+   }
+
+   /***********************************************************************
+    * Transport
+    **********************************************************************/
+
+   /**
+    * A request to shard number s.
+    */
+   private interface Request<T> {
+      T send(ShardConnection shard, int s) throws IOException;
+   }
+
+   /**
+    * Sends the request to every shard, 'parallelism' at a time, and returns
+    * the replies in the order of the shards.
+    */
+   private <T> List<T> broadcast(ExecutorService executor, final Request<T> request) throws IOException {
+      List<Future<T>> futures = new ArrayList<Future<T>>();
+      for (int s = 0; s < shards.size(); s++) {
+         final int shard = s;
+         futures.add(executor.submit(new Callable<T>() {
+            public T call() throws IOException {
+               return request.send(shards.get(shard), shard);
+            }
+         }));
+      }
+
+      List<T> replies = new ArrayList<T>();
+      try {
+         for (Future<T> future : futures)
+            replies.add(future.get());
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException(e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException)
+            throw (IOException) e.getCause();
+         if (e.getCause() instanceof RuntimeException)
+            throw (RuntimeException) e.getCause();
+         throw new IOException(e.getCause());
+      }
+      return replies;
+   }
+
+   private static double sum(List<Double> values) {
+      double sum = 0;
+      for (double value : values)
+         sum += value;
+      return sum;
+   }
+
+   private static double[][] array(List<double[]> points) {
+      return points.toArray(new double[points.size()][]);
+   }
+
+   /**
+    * Number of distinct points, counting no further than k.
+    */
+   private int distinct(List<double[]> points) {
+      return Duplicates.countDistinct(PointStore.of(array(points)), k);
+   }
+
+   /***********************************************************************
+    * Accessors
+    **********************************************************************/
+   public double[][] getCentroids() {
+      return centroids;
+   }
+
+   public double getWCSS() {
+      return WCSS;
+   }
+
+   /**
+    * Number of Lloyd iterations run.
+    */
+   public int getSteps() {
+      return steps;
+   }
+
+   public String getTiming() {
+      return "ShardedKMeans took: " + (double) (end - start) / 1000.0 + " seconds";
+   }
+}
@@ -0,0 +1,254 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ * 
+ * PURPOSE: Clusters points that arrive in blocks, without ever holding all
+ * of them in memory.
+ * 
+ * The first blocks are buffered until there are enough points to seed the
+ * centroids with a (small) KMeans++ run: 'seedSize' of them, k of which
+ * are distinct. Repeated rows are buffered once, with their # of copies,
+ * so a stream that starts with few distinct rows (e.g. constant pixels)
+ * never makes the buffer hold more than 'seedSize' rows. Every later
+ * block is cut into mini-batches that move the centroids (see MiniBatch),
+ * so each point is looked at once and then forgotten.
+ * 
+ * EXAMPLE RUN:
+ * StreamingKMeans stream = new StreamingKMeans.Builder(k, dimensions)
+ *                                 .batchSize(1024)     // optional
+ *                                 .build();
+ * while (moreData)
+ *    stream.add(nextBlock());                          // double[][] rows
+ * double[][] centroids = stream.getCentroids();
+ ************************************************************************/
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+public class StreamingKMeans {
+
+   // user-defined parameters (see KMeans for the others)
+   private final int k;
+   private final int n;
+   private final int batchSize;   // # of points per mini-batch step
+   private final int seedSize;    // # of points buffered for seeding (more while fewer than k are distinct)
+   private final double smoothing;
+   private final boolean L1norm;
+   private final boolean hasSeed;
+   private final long seed;
+
+   // seeding buffer: the distinct rows and their # of copies; null once the
+   // centroids are seeded
+   private Duplicates.Table buffer;
+   private double[] copies;
+   private int buffered;          // # of rows buffered, copies included
+
+   private double[][] centroids;
+   private MiniBatch miniBatch;
+   private long count;            // # of points seen
+
+   private StreamingKMeans(Builder builder) {
+      k = builder.k;
+      n = builder.n;
+      batchSize = builder.batchSize;
+      seedSize = Math.max(builder.seedSize, k);
+      smoothing = builder.smoothing;
+      L1norm = builder.L1norm;
+      hasSeed = builder.hasSeed;
+      seed = builder.seed;
+      buffer = new Duplicates.Table(n, Math.min(seedSize, 1024));
+      copies = new double[Math.min(seedSize, 1024)];
+   }
+
+   /**
+    * Builder class for constructing StreamingKMeans objects.
+    */
+   public static class Builder {
+      // required
+      private final int k;
+      private final int n;
+
+      // optional (default values given)
+      private int batchSize     = 1024;
+      private int seedSize      = 10000;
+      private double smoothing  = 0.01;
+      private boolean L1norm    = true;
+      private boolean hasSeed   = false;
+      private long seed;
+
+      /**
+       * @param k number of clusters
+       * @param n number of dimensions of the points
+       */
+      public Builder(int k, int n) {
+         if (k < 1 || n < 1)
+            throw new IllegalArgumentException("Required: positive # of clusters and dimensions");
+         this.k = k;
+         this.n = n;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 1024.
+       */
+      public Builder batchSize(int batchSize) {
+         if (batchSize < 1)
+            throw new IllegalArgumentException("Required: positive batch size. Ex: 1024");
+         this.batchSize = batchSize;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is 10000. Number of points
+       * buffered (and copied) to seed the centroids; at least k. Buffering
+       * goes on until k of them are distinct.
+       */
+      public Builder seedSize(int seedSize) {
+         if (seedSize < 1)
+            throw new IllegalArgumentException("Required: positive seed size. Ex: 10000");
+         this.seedSize = seedSize;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is .01. Weight of the newest
+       * batch in the smoothed cost returned by getCost().
+       */
+      public Builder smoothing(double smoothing) {
+         if (smoothing <= 0 || smoothing > 1)
+            throw new IllegalArgumentException("Required: smoothing in (0, 1]. Ex: .01");
+         this.smoothing = smoothing;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. Default value is true.
+       */
+      public Builder useL1norm(boolean L1norm) {
+         this.L1norm = L1norm;
+         return this;
+      }
+
+      /**
+       * Sets optional parameter. By default seeding is random.
+       */
+      public Builder seed(long seed) {
+         this.seed = seed;
+         this.hasSeed = true;
+         return this;
+      }
+
+      /**
+       * Build a StreamingKMeans object
+       */
+      public StreamingKMeans build() {
+         return new StreamingKMeans(this);
+      }
+   }
+
+   /***********************************************************************
+    * Streaming
+    **********************************************************************/
+
+   /**
+    * Clusters the next block of points. Rows are not kept after the call
+    * returns (except for copies made while seeding), so the caller may reuse
+    * the block.
+    */
+   public void add(double[][] block) {
+      int from = 0;
+
+      // still seeding: buffer copies of the distinct rows, count the others
+      while (buffer != null && from < block.length) {
+         checkDimension(block[from]);
+         int d = buffer.add(block[from++]);
+         if (d == copies.length)
+            copies = Arrays.copyOf(copies, 2 * copies.length);
+         copies[d]++;
+         buffered++;
+         if (buffered >= seedSize && buffer.size() >= k)
+            seedCentroids();
+      }
+
+      // cut the rest of the block into mini-batches
+      while (from < block.length) {
+         int to = Math.min(block.length, from + batchSize);
+         for (int i = from; i < to; i++)
+            checkDimension(block[i]);
+         miniBatch.step(block, from, to);
+         from = to;
+      }
+      count += block.length;
+   }
+
+   /**
+    * Clusters every block returned by 'blocks'.
+    */
+   public void addAll(Iterator<double[][]> blocks) {
+      while (blocks.hasNext())
+         add(blocks.next());
+   }
+
+   /**
+    * Seeds the centroids with KMeans++ on the buffered points, each distinct
+    * row weighted by its # of copies. The buffered points count as already
+    * absorbed by their clusters, so the learning rates pick up where the
+    * seeding run left off.
+    */
+   private void seedCentroids() {
+      int size = buffer.size();
+      double[] weights = Arrays.copyOf(copies, size);
+      KMeans.Builder builder = new KMeans.Builder(k, PointStore.wrap(buffer.rows(), n))
+                                         .weights(weights)
+                                         .iterations(1)
+                                         .useL1norm(L1norm);
+      if (hasSeed)
+         builder.seed(seed);
+      KMeans seeding = builder.build();
+
+      centroids = seeding.getCentroids();
+      long[] counts = new long[k];
+      int[] assignment = seeding.getAssignment();
+      for (int d = 0; d < size; d++)
+         counts[assignment[d]] += (long) weights[d];
+
+      miniBatch = new MiniBatch(centroids, counts, L1norm, smoothing, 0, Integer.MAX_VALUE);
+      buffer = null;
+      copies = null;
+   }
+
+   private void checkDimension(double[] row) {
+      if (row.length != n)
+         throw new IllegalArgumentException("dimension error");
+   }
+
+   /***********************************************************************
+    * Accessors
+    ***********************************************************************/
+
+   /**
+    * Current centroids. If the centroids are not seeded yet, the buffered
+    * points are used to seed them now.
+    */
+   public double[][] getCentroids() {
+      if (buffer != null) {
+         if (buffer.size() < k)
+            throw new IllegalStateException("Required: # of distinct points added >= # of clusters");
+         seedCentroids();
+      }
+      return centroids;
+   }
+
+   /**
+    * Smoothed cost per point of the recent batches (NaN before the first
+    * batch after seeding). Multiply by getCount() for a WCSS estimate.
+    */
+   public double getCost() {
+      return miniBatch == null ? Double.NaN : miniBatch.cost();
+   }
+
+   /**
+    * Number of points added so far.
+    */
+   public long getCount() {
+      return count;
+   }
+}
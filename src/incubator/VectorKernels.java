@@ -0,0 +1,283 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Distance kernels on the Java Vector API (SIMD).
+ *
+ * Kept apart from the other sources because jdk.incubator.vector is an
+ * incubator module: it must be added both when compiling and when running.
+ *
+ *    javac --add-modules jdk.incubator.vector -d out src/*.java src/incubator/*.java
+ *    java --add-modules jdk.incubator.vector -cp out ...
+ *
+ * Distance loads this class when it is on the class path and falls back to
+ * its scalar loops otherwise.
+ ************************************************************************/
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+class VectorKernels implements Distance.Kernels {
+
+   private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+   private static final int LANES = SPECIES.length();
+
+   // as many floats as there are doubles in SPECIES, widened after loading
+   private static final VectorSpecies<Float> FLOATS =
+      FloatVector.SPECIES_MAX.withShape(VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+   // dimensions below one vector gain nothing from SIMD
+   private final Distance.Scalar scalar = new Distance.Scalar();
+
+   public VectorKernels() {
+      if (LANES < 2)
+         throw new UnsupportedOperationException("no SIMD registers for doubles");
+   }
+
+   public double L1(double[] x, int offset, double[] y) {
+      int n = y.length;
+      if (n < LANES)
+         return scalar.L1(x, offset, y);
+
+      DoubleVector sum = DoubleVector.zero(SPECIES);
+      int i = 0;
+      for (int bound = SPECIES.loopBound(n); i < bound; i += LANES) {
+         DoubleVector diff = DoubleVector.fromArray(SPECIES, x, offset + i)
+                                         .sub(DoubleVector.fromArray(SPECIES, y, i));
+         sum = sum.add(diff.abs());
+      }
+      double dist = sum.reduceLanes(VectorOperators.ADD);
+      for (; i < n; i++)
+         dist += Math.abs(x[offset + i] - y[i]);
+      return dist;
+   }
+
+   public double L2(double[] x, int offset, double[] y) {
+      int n = y.length;
+      if (n < LANES)
+         return scalar.L2(x, offset, y);
+
+      DoubleVector sum = DoubleVector.zero(SPECIES);
+      int i = 0;
+      for (int bound = SPECIES.loopBound(n); i < bound; i += LANES) {
+         DoubleVector diff = DoubleVector.fromArray(SPECIES, x, offset + i)
+                                         .sub(DoubleVector.fromArray(SPECIES, y, i));
+         sum = diff.fma(diff, sum);
+      }
+      double dist = sum.reduceLanes(VectorOperators.ADD);
+      for (; i < n; i++) {
+         double diff = x[offset + i] - y[i];
+         dist += diff * diff;
+      }
+      return dist;
+   }
+
+   public int nearest(double[] x, int offset, double[][] centroids, boolean L1norm) {
+      int n = centroids[0].length;
+      if (n < LANES)
+         return scalar.nearest(x, offset, centroids, L1norm);
+
+      // four centroids per pass over the point: every vector of the point is
+      // loaded once for four distances, and nothing is allocated per point
+      int k = centroids.length;
+      int bound = SPECIES.loopBound(n);
+      int best = 0;
+      double bestDist = Double.POSITIVE_INFINITY;
+      int j = 0;
+      for (; j + 4 <= k; j += 4) {
+         double[] c0 = centroids[j];
+         double[] c1 = centroids[j + 1];
+         double[] c2 = centroids[j + 2];
+         double[] c3 = centroids[j + 3];
+         DoubleVector s0 = DoubleVector.zero(SPECIES);
+         DoubleVector s1 = s0;
+         DoubleVector s2 = s0;
+         DoubleVector s3 = s0;
+         for (int i = 0; i < bound; i += LANES) {
+            DoubleVector p = DoubleVector.fromArray(SPECIES, x, offset + i);
+            DoubleVector d0 = p.sub(DoubleVector.fromArray(SPECIES, c0, i));
+            DoubleVector d1 = p.sub(DoubleVector.fromArray(SPECIES, c1, i));
+            DoubleVector d2 = p.sub(DoubleVector.fromArray(SPECIES, c2, i));
+            DoubleVector d3 = p.sub(DoubleVector.fromArray(SPECIES, c3, i));
+            if (L1norm) {
+               s0 = s0.add(d0.abs());
+               s1 = s1.add(d1.abs());
+               s2 = s2.add(d2.abs());
+               s3 = s3.add(d3.abs());
+            }
+            else {
+               s0 = d0.fma(d0, s0);
+               s1 = d1.fma(d1, s1);
+               s2 = d2.fma(d2, s2);
+               s3 = d3.fma(d3, s3);
+            }
+         }
+         double dist0 = tail(s0, x, offset, c0, bound, L1norm);
+         double dist1 = tail(s1, x, offset, c1, bound, L1norm);
+         double dist2 = tail(s2, x, offset, c2, bound, L1norm);
+         double dist3 = tail(s3, x, offset, c3, bound, L1norm);
+         if (dist0 < bestDist) {
+            bestDist = dist0;
+            best = j;
+         }
+         if (dist1 < bestDist) {
+            bestDist = dist1;
+            best = j + 1;
+         }
+         if (dist2 < bestDist) {
+            bestDist = dist2;
+            best = j + 2;
+         }
+         if (dist3 < bestDist) {
+            bestDist = dist3;
+            best = j + 3;
+         }
+      }
+      for (; j < k; j++) {
+         double dist = L1norm ? L1(x, offset, centroids[j]) : L2(x, offset, centroids[j]);
+         if (dist < bestDist) {
+            bestDist = dist;
+            best = j;
+         }
+      }
+      return best;
+   }
+
+   /**
+    * Reduces the lanes of 'sum' and adds the coordinates from 'bound' on,
+    * in the order L1() and L2() add them.
+    */
+   private static double tail(DoubleVector sum, double[] x, int offset, double[] c, int bound, boolean L1norm) {
+      double dist = sum.reduceLanes(VectorOperators.ADD);
+      for (int i = bound; i < c.length; i++) {
+         double diff = x[offset + i] - c[i];
+         dist += L1norm ? Math.abs(diff) : diff * diff;
+      }
+      return dist;
+   }
+
+   public double L1(float[] x, int offset, double[] y) {
+      int n = y.length;
+      if (n < LANES)
+         return scalar.L1(x, offset, y);
+
+      DoubleVector sum = DoubleVector.zero(SPECIES);
+      int i = 0;
+      for (int bound = SPECIES.loopBound(n); i < bound; i += LANES) {
+         DoubleVector diff = load(x, offset + i).sub(DoubleVector.fromArray(SPECIES, y, i));
+         sum = sum.add(diff.abs());
+      }
+      double dist = sum.reduceLanes(VectorOperators.ADD);
+      for (; i < n; i++)
+         dist += Math.abs(x[offset + i] - y[i]);
+      return dist;
+   }
+
+   public double L2(float[] x, int offset, double[] y) {
+      int n = y.length;
+      if (n < LANES)
+         return scalar.L2(x, offset, y);
+
+      DoubleVector sum = DoubleVector.zero(SPECIES);
+      int i = 0;
+      for (int bound = SPECIES.loopBound(n); i < bound; i += LANES) {
+         DoubleVector diff = load(x, offset + i).sub(DoubleVector.fromArray(SPECIES, y, i));
+         sum = diff.fma(diff, sum);
+      }
+      double dist = sum.reduceLanes(VectorOperators.ADD);
+      for (; i < n; i++) {
+         double diff = x[offset + i] - y[i];
+         dist += diff * diff;
+      }
+      return dist;
+   }
+
+   public int nearest(float[] x, int offset, double[][] centroids, boolean L1norm) {
+      int n = centroids[0].length;
+      if (n < LANES)
+         return scalar.nearest(x, offset, centroids, L1norm);
+
+      // as nearest(double[], ...): the point is widened once per four centroids
+      int k = centroids.length;
+      int bound = SPECIES.loopBound(n);
+      int best = 0;
+      double bestDist = Double.POSITIVE_INFINITY;
+      int j = 0;
+      for (; j + 4 <= k; j += 4) {
+         double[] c0 = centroids[j];
+         double[] c1 = centroids[j + 1];
+         double[] c2 = centroids[j + 2];
+         double[] c3 = centroids[j + 3];
+         DoubleVector s0 = DoubleVector.zero(SPECIES);
+         DoubleVector s1 = s0;
+         DoubleVector s2 = s0;
+         DoubleVector s3 = s0;
+         for (int i = 0; i < bound; i += LANES) {
+            DoubleVector p = load(x, offset + i);
+            DoubleVector d0 = p.sub(DoubleVector.fromArray(SPECIES, c0, i));
+            DoubleVector d1 = p.sub(DoubleVector.fromArray(SPECIES, c1, i));
+            DoubleVector d2 = p.sub(DoubleVector.fromArray(SPECIES, c2, i));
+            DoubleVector d3 = p.sub(DoubleVector.fromArray(SPECIES, c3, i));
+            if (L1norm) {
+               s0 = s0.add(d0.abs());
+               s1 = s1.add(d1.abs());
+               s2 = s2.add(d2.abs());
+               s3 = s3.add(d3.abs());
+            }
+            else {
+               s0 = d0.fma(d0, s0);
+               s1 = d1.fma(d1, s1);
+               s2 = d2.fma(d2, s2);
+               s3 = d3.fma(d3, s3);
+            }
+         }
+         double dist0 = tail(s0, x, offset, c0, bound, L1norm);
+         double dist1 = tail(s1, x, offset, c1, bound, L1norm);
+         double dist2 = tail(s2, x, offset, c2, bound, L1norm);
+         double dist3 = tail(s3, x, offset, c3, bound, L1norm);
+         if (dist0 < bestDist) {
+            bestDist = dist0;
+            best = j;
+         }
+         if (dist1 < bestDist) {
+            bestDist = dist1;
+            best = j + 1;
+         }
+         if (dist2 < bestDist) {
+            bestDist = dist2;
+            best = j + 2;
+         }
+         if (dist3 < bestDist) {
+            bestDist = dist3;
+            best = j + 3;
+         }
+      }
+      for (; j < k; j++) {
+         double dist = L1norm ? L1(x, offset, centroids[j]) : L2(x, offset, centroids[j]);
+         if (dist < bestDist) {
+            bestDist = dist;
+            best = j;
+         }
+      }
+      return best;
+   }
+
+   private static double tail(DoubleVector sum, float[] x, int offset, double[] c, int bound, boolean L1norm) {
+      double dist = sum.reduceLanes(VectorOperators.ADD);
+      for (int i = bound; i < c.length; i++) {
+         double diff = x[offset + i] - c[i];
+         dist += L1norm ? Math.abs(diff) : diff * diff;
+      }
+      return dist;
+   }
+
+   /**
+    * LANES floats from x[offset], widened to doubles.
+    */
+   private static DoubleVector load(float[] x, int offset) {
+      return (DoubleVector) FloatVector.fromArray(FLOATS, x, offset)
+                                       .convertShape(VectorOperators.F2D, SPECIES, 0);
+   }
+}
@@ -0,0 +1,55 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Tests of CSVreader.
+ ************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CSVreaderTest {
+
+   @TempDir
+   Path dir;
+
+   /**
+    * A comma at the end of a line ends the row, as String.split(",") did.
+    */
+   @Test
+   public void dropsTrailingComma() throws IOException {
+      double[][] rows = CSVreader.read(write("1,2,\n3,4,\n"), 1);
+      assertEquals(2, rows.length);
+      assertArrayEquals(new double[] {1, 2}, rows[0], 0);
+      assertArrayEquals(new double[] {3, 4}, rows[1], 0);
+   }
+
+   /**
+    * An empty field inside a line names its row and column.
+    */
+   @Test
+   public void rejectsEmptyField() throws IOException {
+      final String file = write("1,2,3\n\n4,,6\n");
+      IllegalArgumentException e = assertThrows(IllegalArgumentException.class, new Executable() {
+         public void execute() throws IOException {
+            CSVreader.read(file, 1);
+         }
+      });
+      assertEquals("Empty field in row 2, column 2", e.getMessage());
+   }
+
+   private String write(String contents) throws IOException {
+      Path file = dir.resolve("points.csv");
+      Files.write(file, contents.getBytes(StandardCharsets.US_ASCII));
+      return file.toString();
+   }
+}
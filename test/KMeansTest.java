@@ -0,0 +1,38 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Tests of KMeans.
+ ************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class KMeansTest {
+
+   /**
+    * A warm start from centroids and a prior assignment that agree with each
+    * other (nothing changes in the first pass) must still iterate: the pass
+    * moved the centroids to the means of the assignment, which point 5 is
+    * then nearer to the other cluster of.
+    */
+   @Test
+   public void warmStartWithCentroidsAndAssignmentConverges() {
+      double[][] points = {{-10}, {5}, {9}, {10}};
+      double[][] centroids = {{4}, {10}};
+
+      KMeans both = new KMeans.Builder(2, points)
+                              .initialCentroids(centroids)
+                              .initialAssignment(new int[] {0, 0, 1, 1})
+                              .build();
+      KMeans centroidsOnly = new KMeans.Builder(2, points)
+                                       .initialCentroids(centroids)
+                                       .build();
+
+      assertArrayEquals(new int[] {0, 1, 1, 1}, both.getAssignment());
+      assertEquals(centroidsOnly.getWCSS(), both.getWCSS(), 1e-9);
+      assertEquals(-10, both.getCentroids()[0][0], 1e-9);
+      assertEquals(8, both.getCentroids()[1][0], 1e-9);
+   }
+}
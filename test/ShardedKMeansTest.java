@@ -0,0 +1,78 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Tests of ShardedKMeans, over in-process LoopbackConnections.
+ ************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+public class ShardedKMeansTest {
+
+   /**
+    * A total weight of 1 gives ln(1) = 0 rounds of k-means||: the seeding
+    * must still find k distinct candidates.
+    */
+   @Test
+   public void seedsKCentroidsFromSmallTotalWeight() throws IOException {
+      double[] weights = {.25, .25};
+      List<ShardConnection> shards = new ArrayList<ShardConnection>();
+      shards.add(new LoopbackConnection(new Shard(PointStore.of(new double[][] {{0, 0}, {1, 1}}), weights, false)));
+      shards.add(new LoopbackConnection(new Shard(PointStore.of(new double[][] {{5, 5}, {9, 9}}), weights, false)));
+
+      ShardedKMeans job = new ShardedKMeans.Builder(4, shards).seed(3).build();
+
+      assertEquals(4, job.getCentroids().length);
+      assertEquals(0, job.getWCSS(), 1e-12);
+   }
+
+   /**
+    * Shards keep their assignment after a job: a job must give the same
+    * result on shards that already ran one (stopped early by a large
+    * epsilon) as on fresh shards.
+    */
+   @Test
+   public void secondJobOnSameShardsMatchesFreshShards() throws IOException {
+      Random gen = new Random(1);
+      for (int t = 0; t < 20; t++) {
+         double[][] points = new double[200][2];
+         for (double[] x : points) {
+            x[0] = 3 * gen.nextGaussian();
+            x[1] = gen.nextGaussian();
+         }
+         List<ShardConnection> reused = split(points);
+         new ShardedKMeans.Builder(5, reused).epsilon(.2).seed(t).build();
+
+         double again = new ShardedKMeans.Builder(5, reused).useEpsilon(false).seed(100 + t).build().getWCSS();
+         double fresh = new ShardedKMeans.Builder(5, split(points)).useEpsilon(false).seed(100 + t).build().getWCSS();
+         assertEquals(fresh, again, 0, "points " + t);
+      }
+   }
+
+   private static List<ShardConnection> split(double[][] points) {
+      List<ShardConnection> shards = new ArrayList<ShardConnection>();
+      shards.add(new LoopbackConnection(new Shard(Arrays.copyOfRange(points, 0, points.length / 2), false)));
+      shards.add(new LoopbackConnection(new Shard(Arrays.copyOfRange(points, points.length / 2, points.length), false)));
+      return shards;
+   }
+
+   @Test
+   public void rejectsNegativeEpsilon() {
+      final List<ShardConnection> shards = new ArrayList<ShardConnection>();
+      shards.add(new LoopbackConnection(new Shard(new double[][] {{0, 0}}, false)));
+      assertThrows(IllegalArgumentException.class, new Executable() {
+         public void execute() {
+            new ShardedKMeans.Builder(1, shards).epsilon(-1);
+         }
+      });
+   }
+}
@@ -0,0 +1,77 @@
+/*************************************************************************
+ * @author Jason Altschuler
+ *
+ * PURPOSE: Tests of StreamingKMeans.
+ ************************************************************************/
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+public class StreamingKMeansTest {
+
+   /**
+    * A stream that starts with more than 'seedSize' identical points keeps
+    * buffering until it has k distinct ones, instead of failing.
+    */
+   @Test
+   public void seedsOnceEnoughDistinctPointsArrive() {
+      StreamingKMeans stream = new StreamingKMeans.Builder(2, 1)
+                                                  .seedSize(8)
+                                                  .seed(1)
+                                                  .build();
+      double[][] constant = new double[20][];
+      for (int i = 0; i < constant.length; i++)
+         constant[i] = new double[] {0};
+      stream.add(constant);
+
+      double[][] other = new double[20][];
+      for (int i = 0; i < other.length; i++)
+         other[i] = new double[] {10};
+      stream.add(other);
+
+      double[][] centroids = stream.getCentroids();
+      double[] coordinates = {centroids[0][0], centroids[1][0]};
+      Arrays.sort(coordinates);
+      assertEquals(0, coordinates[0], 1e-9);
+      assertEquals(10, coordinates[1], 1e-9);
+      assertEquals(40, stream.getCount());
+   }
+
+   /**
+    * A long constant prefix is buffered as one row, and seeding happens on
+    * the first row that makes k distinct ones.
+    */
+   @Test
+   public void longConstantPrefixSeedsOnTheKthDistinctRow() {
+      StreamingKMeans stream = new StreamingKMeans.Builder(2, 1)
+                                                  .seedSize(8)
+                                                  .seed(1)
+                                                  .build();
+      double[][] constant = new double[1000][];
+      for (int i = 0; i < constant.length; i++)
+         constant[i] = new double[] {0};
+      for (int b = 0; b < 1000; b++)
+         stream.add(constant);
+      assertEquals(Double.NaN, stream.getCost());
+
+      stream.add(new double[][] {{10}, {10}});
+      assertEquals(1000002, stream.getCount());
+      assertEquals(0, stream.getCost(), 1e-9);   // the second {10} went to a mini-batch
+   }
+
+   @Test
+   public void centroidsNeedKDistinctPoints() {
+      final StreamingKMeans stream = new StreamingKMeans.Builder(2, 1).build();
+      stream.add(new double[][] {{3}, {3}, {3}});
+      assertThrows(IllegalStateException.class, new Executable() {
+         public void execute() {
+            stream.getCentroids();
+         }
+      });
+   }
+}